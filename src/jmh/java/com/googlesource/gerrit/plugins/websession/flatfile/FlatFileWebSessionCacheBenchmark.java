@@ -0,0 +1,314 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.httpd.WebSessionManager.Val;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.account.externalids.ExternalId;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import java.lang.reflect.Constructor;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jgit.lib.Config;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the operations of {@link FlatFileWebSessionCache} on a real directory.
+ *
+ * <p>The directory is populated once per trial with {@code sessions} sessions carrying an auth
+ * token of {@code payloadBytes} characters. Operations on single sessions are measured on one
+ * thread, and on {@value #CONTENDED_THREADS} threads by the benchmarks ending in {@code
+ * Contended}, e.g.
+ *
+ * <pre>
+ *   bazel run plugins/websession-flatfile:websession_flatfile_benchmarks -- \
+ *       -p sessions=100000 -p shardDepth=2 getIfPresent
+ * </pre>
+ *
+ * <p>{@code -jvmArgsAppend -Djava.io.tmpdir=<dir>} selects the filesystem the directory is created
+ * on, e.g. a mount of the shared filesystem used in production.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(1)
+public class FlatFileWebSessionCacheBenchmark {
+  private static final String PLUGIN_NAME = "websession-flatfile";
+  private static final int BATCH_SIZE = 10;
+  private static final int CONTENDED_THREADS = 8;
+  /** Sessions invalidated per thread and iteration, see {@link InvalidatedKeys}. */
+  private static final int INVALIDATIONS = 1000;
+  private static final Constructor<Val> VAL_CONSTRUCTOR = valConstructor();
+
+  @Param({"1000", "100000", "1000000"})
+  public int sessions;
+
+  @Param({"64", "1024"})
+  public int payloadBytes;
+
+  @Param({"0", "2"})
+  public int shardDepth;
+
+  @Param({"10000"})
+  public int memoryCacheSize;
+
+  private Path websessionsDir;
+  private FlatFileWebSessionCache cache;
+  private List<String> keys;
+  private Val[] values;
+  private long expiresAt;
+
+  @Setup(Level.Trial)
+  public void populate() throws Exception {
+    Guice.createInjector(
+        new AbstractModule() {
+          @Override
+          protected void configure() {
+            bind(Config.class).annotatedWith(GerritServerConfig.class).toInstance(new Config());
+            requestStaticInjection(Val.class);
+          }
+        });
+    websessionsDir = Files.createTempDirectory("websessions-benchmark");
+    Config cfg = new Config();
+    cfg.setInt("plugin", PLUGIN_NAME, "shardDepth", shardDepth);
+    cfg.setInt("plugin", PLUGIN_NAME, "memoryCacheSize", memoryCacheSize);
+    Configuration config = new Configuration(PluginConfig.createFromGerritConfig(PLUGIN_NAME, cfg));
+    WebSessionMetrics metrics = new WebSessionMetrics(new DisabledMetricMaker());
+    cache =
+        new FlatFileWebSessionCache(
+            new FlatFileSessionStore(
+                websessionsDir, config, SessionScanner.sequential(), metrics),
+            config,
+            metrics);
+
+    expiresAt = System.currentTimeMillis() + DAYS.toMillis(30);
+    values = new Val[] {newVal("a"), newVal("b")};
+    keys = new ArrayList<>(sessions);
+    for (int i = 0; i < sessions; i++) {
+      String key = String.format("bench%029d", i);
+      keys.add(key);
+      cache.put(key, values[i % values.length]);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteDirectory() throws Exception {
+    MoreFiles.deleteRecursively(websessionsDir, RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  /**
+   * Sessions stored by each thread before each iteration, which then invalidates each of them once:
+   * the iterations of the invalidation benchmarks are batches of {@value #INVALIDATIONS} calls.
+   */
+  @State(Scope.Thread)
+  public static class InvalidatedKeys {
+    private static final AtomicInteger states = new AtomicInteger();
+
+    private final int id = states.incrementAndGet();
+    private int iteration;
+    private List<String> keys;
+    private int next;
+
+    @Setup(Level.Iteration)
+    public void populate(FlatFileWebSessionCacheBenchmark benchmark) {
+      iteration++;
+      keys = new ArrayList<>(INVALIDATIONS);
+      for (int i = 0; i < INVALIDATIONS; i++) {
+        String key = String.format("inval%05d%05d%019d", id, iteration, i);
+        keys.add(key);
+        benchmark.cache.put(key, benchmark.values[i % benchmark.values.length]);
+      }
+      next = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteRemaining(FlatFileWebSessionCacheBenchmark benchmark) {
+      benchmark.cache.invalidateAll(keys.subList(next, keys.size()));
+    }
+
+    String next() {
+      return keys.get(next++);
+    }
+  }
+
+  @Benchmark
+  public Val getIfPresent() {
+    return cache.getIfPresent(randomKey());
+  }
+
+  @Benchmark
+  @Threads(CONTENDED_THREADS)
+  public Val getIfPresentContended() {
+    return getIfPresent();
+  }
+
+  @Benchmark
+  public Val getIfPresentMissing() {
+    return cache.getIfPresent("missing" + ThreadLocalRandom.current().nextInt(sessions));
+  }
+
+  @Benchmark
+  @Threads(CONTENDED_THREADS)
+  public Val getIfPresentMissingContended() {
+    return getIfPresentMissing();
+  }
+
+  /** Put of a session whose token changed, which rewrites the file. */
+  @Benchmark
+  public void put() throws Exception {
+    cache.put(randomKey(), newVal(Long.toString(ThreadLocalRandom.current().nextLong())));
+  }
+
+  @Benchmark
+  @Threads(CONTENDED_THREADS)
+  public void putContended() throws Exception {
+    put();
+  }
+
+  /** Put of the session already stored, e.g. on a session refresh. */
+  @Benchmark
+  public void putUnchanged() {
+    int i = ThreadLocalRandom.current().nextInt(keys.size());
+    cache.put(keys.get(i), values[i % values.length]);
+  }
+
+  @Benchmark
+  @Threads(CONTENDED_THREADS)
+  public void putUnchangedContended() {
+    putUnchanged();
+  }
+
+  /** Invalidation of a stored session, reported per batch of {@value #INVALIDATIONS}. */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 3, batchSize = INVALIDATIONS)
+  @Measurement(iterations = 5, batchSize = INVALIDATIONS)
+  public void invalidate(InvalidatedKeys invalidated) {
+    cache.invalidate(invalidated.next());
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 3, batchSize = INVALIDATIONS)
+  @Measurement(iterations = 5, batchSize = INVALIDATIONS)
+  @Threads(CONTENDED_THREADS)
+  public void invalidateContended(InvalidatedKeys invalidated) {
+    invalidate(invalidated);
+  }
+
+  @Benchmark
+  public ImmutableMap<String, Val> getAllPresent() {
+    int from = ThreadLocalRandom.current().nextInt(Math.max(1, keys.size() - BATCH_SIZE));
+    return cache.getAllPresent(keys.subList(from, Math.min(from + BATCH_SIZE, keys.size())));
+  }
+
+  /** Iteration of all sessions through the {@code asMap()} view. */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void asMap(Blackhole blackhole) {
+    for (Map.Entry<String, Val> entry : cache.asMap().entrySet()) {
+      blackhole.consume(entry);
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public long size() {
+    return cache.size();
+  }
+
+  /** Cleanup of a directory where no session expired, i.e. the cost of finding expired ones. */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void cleanUp() {
+    cache.cleanUp();
+  }
+
+  private String randomKey() {
+    return keys.get(ThreadLocalRandom.current().nextInt(keys.size()));
+  }
+
+  /** Session with an auth token of {@code payloadBytes} characters starting with {@code id}. */
+  private Val newVal(String id) throws ReflectiveOperationException {
+    StringBuilder auth = new StringBuilder(payloadBytes).append(id);
+    while (auth.length() < payloadBytes) {
+      auth.append('x');
+    }
+    return VAL_CONSTRUCTOR.newInstance(
+        Account.id(1000000),
+        expiresAt - DAYS.toMillis(1),
+        true,
+        ExternalId.Key.create("username", "jdoe", false),
+        expiresAt,
+        "sessionid",
+        auth.toString());
+  }
+
+  /** {@link Val} can only be created by Gerrit core, see {@link SessionCodec}. */
+  private static Constructor<Val> valConstructor() {
+    try {
+      Constructor<Val> constructor =
+          Val.class.getDeclaredConstructor(
+              Account.Id.class,
+              long.class,
+              boolean.class,
+              ExternalId.Key.class,
+              long.class,
+              String.class,
+              String.class);
+      constructor.setAccessible(true);
+      return constructor;
+    } catch (NoSuchMethodException e) {
+      throw new IllegalStateException("Cannot create sessions", e);
+    }
+  }
+}
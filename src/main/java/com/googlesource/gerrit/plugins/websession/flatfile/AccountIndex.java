@@ -0,0 +1,67 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.entities.Account;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+/**
+ * Index of sessions by account.
+ *
+ * <p>Each session of an account has an empty marker file named after its key in the directory of
+ * the account, e.g. {@code .accounts/1000000/<key>}. Markers are added when sessions are stored and
+ * removed when they are deleted, but may outlive sessions deleted by masters not maintaining the
+ * index: lookups check that the sessions still belong to the account.
+ */
+class AccountIndex extends MarkerIndex {
+  static final String DIRECTORY = ".accounts";
+
+  AccountIndex(Path websessionsDir) {
+    super(websessionsDir.resolve(DIRECTORY), "account index");
+  }
+
+  void add(String key, Account.Id accountId) {
+    addMarker(accountGroup(accountId), key);
+  }
+
+  void remove(String key, Account.Id accountId) {
+    // The directory of the account is kept, so that concurrent adds never
+    // race with its deletion.
+    removeMarker(accountGroup(accountId), key);
+  }
+
+  /** Lists the keys indexed for {@code accountId}, some of which may no longer exist. */
+  ImmutableList<String> keysOf(Account.Id accountId) throws IOException {
+    ImmutableList.Builder<String> keys = ImmutableList.builder();
+    Path account = groupDir(accountGroup(accountId));
+    try (DirectoryStream<Path> markers = Files.newDirectoryStream(account)) {
+      for (Path marker : markers) {
+        keys.add(marker.getFileName().toString());
+      }
+    } catch (NoSuchFileException e) {
+      // No session of that account.
+    }
+    return keys.build();
+  }
+
+  private static String accountGroup(Account.Id accountId) {
+    return Integer.toString(accountId.get());
+  }
+}
@@ -0,0 +1,83 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Provides the threads on which bulk operations of {@link FlatFileWebSessionCache} read and write
+ * sessions concurrently, when {@code bulkThreads} is greater than 1.
+ *
+ * <p>Virtual threads are used when the Java runtime supports them, since these threads mostly wait
+ * for the filesystem. Otherwise a pool of {@code bulkThreads} threads is created.
+ */
+@Singleton
+class BulkExecutor implements LifecycleListener {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  private final WorkQueue queue;
+  private final FlatFileWebSessionCache flatFileWebSessionCache;
+  private final Configuration config;
+  private ExecutorService bulkExecutor;
+
+  @Inject
+  BulkExecutor(
+      WorkQueue queue, FlatFileWebSessionCache flatFileWebSessionCache, Configuration config) {
+    this.queue = queue;
+    this.flatFileWebSessionCache = flatFileWebSessionCache;
+    this.config = config;
+  }
+
+  @Override
+  public void start() {
+    if (config.getBulkThreads() <= 1) {
+      return;
+    }
+    bulkExecutor = newVirtualThreadExecutor();
+    if (bulkExecutor == null) {
+      // Bulk operations keep one thread busy themselves.
+      bulkExecutor = queue.createQueue(config.getBulkThreads() - 1, "WebSessionBulk");
+    }
+    flatFileWebSessionCache.setBulkExecutor(bulkExecutor);
+  }
+
+  @Override
+  public void stop() {
+    if (bulkExecutor != null) {
+      flatFileWebSessionCache.setBulkExecutor(null);
+      bulkExecutor.shutdown();
+      bulkExecutor = null;
+    }
+  }
+
+  /** Creates an executor starting a virtual thread per task, {@code null} if not supported. */
+  @Nullable
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      log.atFine().log("Virtual threads are not supported, using a thread pool");
+      return null;
+    }
+  }
+}
@@ -0,0 +1,114 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Stops calls to a failing dependency for a while, so that callers fail fast instead of piling up.
+ *
+ * <p>The breaker opens after {@code threshold} consecutive failures. While open, calls are
+ * rejected until {@code openNanos} elapsed, then a single probe call is let through: the breaker
+ * closes if it succeeds and opens again if it fails.
+ */
+class CircuitBreaker {
+
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final int threshold;
+  private final long openNanos;
+  private final LongSupplier nanoTime;
+  private State state = State.CLOSED;
+  private int failures;
+  private long openedAt;
+  private long trips;
+
+  CircuitBreaker(int threshold, long openNanos) {
+    this(threshold, openNanos, System::nanoTime);
+  }
+
+  CircuitBreaker(int threshold, long openNanos, LongSupplier nanoTime) {
+    this.threshold = threshold;
+    this.openNanos = openNanos;
+    this.nanoTime = nanoTime;
+  }
+
+  /** Returns whether a call may be made now, moving to half open once the open time elapsed. */
+  synchronized boolean allowCall() {
+    switch (state) {
+      case OPEN:
+        if (nanoTime.getAsLong() - openedAt < openNanos) {
+          return false;
+        }
+        state = State.HALF_OPEN;
+        return true;
+      case HALF_OPEN:
+        // The probe call is still running.
+        return false;
+      case CLOSED:
+      default:
+        return true;
+    }
+  }
+
+  /** Records a successful call, returns whether it closed the breaker. */
+  synchronized boolean onSuccess() {
+    failures = 0;
+    // While open, calls started before the breaker opened do not close it.
+    if (state == State.HALF_OPEN) {
+      state = State.CLOSED;
+      return true;
+    }
+    return false;
+  }
+
+  /** Records a failed call, returns whether it opened the breaker. */
+  synchronized boolean onFailure() {
+    switch (state) {
+      case OPEN:
+        return false;
+      case HALF_OPEN:
+        open();
+        return true;
+      case CLOSED:
+      default:
+        if (++failures >= threshold) {
+          open();
+          return true;
+        }
+        return false;
+    }
+  }
+
+  synchronized State state() {
+    return state;
+  }
+
+  /** Number of times the breaker opened. */
+  synchronized long trips() {
+    return trips;
+  }
+
+  private void open() {
+    state = State.OPEN;
+    openedAt = nanoTime.getAsLong();
+    failures = 0;
+    trips++;
+  }
+}
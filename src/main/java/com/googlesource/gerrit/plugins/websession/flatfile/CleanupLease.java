@@ -0,0 +1,259 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.UUID;
+
+/**
+ * Lets a single master clean up the shared websessions directory per cleanup interval.
+ *
+ * <p>The lease is the {@code .cleanup.lease} file of the websessions directory. Like a session
+ * file, its modification time is its expiry, and it names the master holding it. A master only
+ * cleans up if it takes the lease, which is possible when there is none or when it expired. While
+ * a cleanup runs, the lease expires after {@code cleanupLeaseTimeout}, so that it is taken over if
+ * the master crashed. The lease is renewed between the batches of the cleanup, which stops if it
+ * cannot be. Once the cleanup is done, the lease is kept until shortly before the next cleanup is
+ * due and the other masters skip this interval.
+ *
+ * <p>A lease is created as a hard link to a file written beforehand, which fails if the lease
+ * exists, also on NFS. An expired lease is taken over by renaming it, which only one master can do.
+ * The lease is never modified in place: renewing or releasing it renames it away as well, checks
+ * that it is still held by this master, and creates it again, so that a lease taken over meanwhile
+ * is put back untouched.
+ */
+@Singleton
+class CleanupLease {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  static final String FILE_NAME = ".cleanup.lease";
+
+  /** Time before the next cleanup at which a completed lease expires. */
+  private static final long NEXT_CLEANUP_MARGIN_MILLIS = MINUTES.toMillis(1);
+
+  private final Path websessionsDir;
+  private final Path lease;
+  private final String owner =
+      ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID();
+  private final boolean enabled;
+  private final long timeoutMillis;
+  private final long cleanupIntervalMillis;
+  /** Whether the lease file was taken by this master and not released yet. */
+  private boolean held;
+  /** Whether the lease held could not be renewed. */
+  private boolean lost;
+  private long acquiredAt;
+  private long renewedAt;
+
+  @Inject
+  CleanupLease(
+      @WebSessionDir Path websessionsDir,
+      Configuration config,
+      @CleanupInterval long cleanupInterval) {
+    this.websessionsDir = websessionsDir;
+    this.lease = websessionsDir.resolve(FILE_NAME);
+    this.enabled = config.isCleanupLease();
+    this.timeoutMillis = config.getCleanupLeaseTimeoutMillis();
+    this.cleanupIntervalMillis = cleanupInterval;
+  }
+
+  /**
+   * Takes the lease for a cleanup starting now. Errors accessing the lease are logged and the
+   * cleanup runs as without a lease.
+   *
+   * @return whether this master should clean up.
+   */
+  synchronized boolean tryAcquire() {
+    if (!enabled) {
+      return true;
+    }
+    long now = System.currentTimeMillis();
+    held = false;
+    lost = false;
+    try {
+      if (!create(now + timeoutMillis)) {
+        long expiresAt;
+        try {
+          expiresAt = Files.getLastModifiedTime(lease).toMillis();
+        } catch (NoSuchFileException e) {
+          // Released by a takeover in progress, which gets it.
+          return false;
+        }
+        if (expiresAt > now) {
+          log.atFine().log("Cleanup lease %s is held by %s", lease, holder(lease));
+          return false;
+        }
+        if (!takeOver(now) || !create(now + timeoutMillis)) {
+          return false;
+        }
+      }
+      held = true;
+      acquiredAt = now;
+      renewedAt = now;
+      return true;
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot take cleanup lease %s", lease);
+      return true;
+    }
+  }
+
+  /**
+   * Extends the lease held for a running cleanup by {@code cleanupLeaseTimeout}. The lease file is
+   * only updated once per tenth of the timeout.
+   *
+   * @return whether the cleanup may go on, {@code false} if the lease was taken over or cannot be
+   *     extended.
+   */
+  synchronized boolean renew() {
+    if (!held) {
+      return true;
+    }
+    if (lost) {
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    if (now - renewedAt < timeoutMillis / 10) {
+      return true;
+    }
+    try {
+      if (!recreate(now + timeoutMillis)) {
+        log.atWarning().log("Cleanup lease %s was taken over by %s", lease, holder(lease));
+        lost = true;
+        return false;
+      }
+      renewedAt = now;
+      return true;
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot renew cleanup lease %s", lease);
+      lost = true;
+      return false;
+    }
+  }
+
+  /**
+   * Gives back the lease taken by {@link #tryAcquire()}.
+   *
+   * @param completed whether the cleanup completed, so that other masters skip it until the next
+   *     one is due. Otherwise, or if the lease could not be renewed, the lease can be taken right
+   *     away.
+   */
+  synchronized void release(boolean completed) {
+    if (!held) {
+      return;
+    }
+    held = false;
+    try {
+      long expiresAt =
+          completed && !lost
+              ? acquiredAt + cleanupIntervalMillis - NEXT_CLEANUP_MARGIN_MILLIS
+              : System.currentTimeMillis();
+      if (!recreate(expiresAt)) {
+        log.atWarning().log("Cleanup lease %s was taken over by %s", lease, holder(lease));
+      }
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot release cleanup lease %s", lease);
+    }
+  }
+
+  /** Creates the lease, returns {@code false} if it exists. */
+  private boolean create(long expiresAt) throws IOException {
+    Path temp = websessionsDir.resolve(FILE_NAME + "." + UUID.randomUUID());
+    try {
+      Files.write(temp, owner.getBytes(UTF_8));
+      Files.setLastModifiedTime(temp, FileTime.fromMillis(expiresAt));
+      Files.createLink(lease, temp);
+      return true;
+    } catch (FileAlreadyExistsException e) {
+      return false;
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Replaces the lease held by this master with one expiring at {@code expiresAt}.
+   *
+   * @return whether the lease was replaced, {@code false} if another master holds it.
+   */
+  private boolean recreate(long expiresAt) throws IOException {
+    Path previous = websessionsDir.resolve(FILE_NAME + "." + UUID.randomUUID());
+    try {
+      Files.move(lease, previous, StandardCopyOption.ATOMIC_MOVE);
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+    try {
+      if (!owner.equals(holder(previous))) {
+        // Taken over since this master last checked, give it back.
+        try {
+          Files.createLink(lease, previous);
+        } catch (FileAlreadyExistsException e) {
+          // Taken by yet another master meanwhile.
+        }
+        return false;
+      }
+    } finally {
+      Files.deleteIfExists(previous);
+    }
+    // Fails if another master took the lease while it was renamed away, which it then keeps.
+    return create(expiresAt);
+  }
+
+  /** Removes the expired lease, returns {@code false} if another master was faster. */
+  private boolean takeOver(long now) throws IOException {
+    Path expired = websessionsDir.resolve(FILE_NAME + "." + UUID.randomUUID());
+    try {
+      Files.move(lease, expired, StandardCopyOption.ATOMIC_MOVE);
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+    try {
+      if (Files.getLastModifiedTime(expired).toMillis() > now) {
+        // Another master took over the lease since it was found expired, give it back.
+        try {
+          Files.createLink(lease, expired);
+        } catch (FileAlreadyExistsException e) {
+          // Taken by yet another master meanwhile.
+        }
+        return false;
+      }
+      log.atInfo().log("Taking over expired cleanup lease of %s", holder(expired));
+      return true;
+    } finally {
+      Files.deleteIfExists(expired);
+    }
+  }
+
+  private static String holder(Path lease) throws IOException {
+    try {
+      return new String(Files.readAllBytes(lease), UTF_8);
+    } catch (NoSuchFileException e) {
+      return "nobody";
+    }
+  }
+}
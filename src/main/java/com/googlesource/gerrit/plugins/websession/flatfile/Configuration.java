@@ -0,0 +1,399 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/** Tuning options read from the {@code [plugin "websession-flatfile"]} section. */
+@Singleton
+class Configuration {
+  /** Implementations of {@link SessionStore}. */
+  enum StoreType {
+    /** One file per session, see {@link FlatFileSessionStore}. */
+    FLAT,
+    /** Append-only segment files with an in-memory index, see {@link SegmentSessionStore}. */
+    SEGMENT
+  }
+
+  /** How sessions kept in memory are checked against the {@link SessionStore}. */
+  enum ChangeDetection {
+    /** Check the version of the stored session on each lookup. */
+    STAT,
+    /** Evict sessions on notifications of the filesystem, see {@link SessionChangeWatcher}. */
+    WATCH,
+    /** Periodically compare the versions of the sessions kept in memory. */
+    POLL
+  }
+
+  /** How the number of sessions is determined. */
+  enum SizeMode {
+    /** List the stored sessions on each call. */
+    EXACT,
+    /** Count sessions as they are stored and deleted, recounted by each cleanup. */
+    APPROXIMATE
+  }
+
+  static final int DEFAULT_MEMORY_CACHE_SIZE = 10000;
+  static final int DEFAULT_SHARD_WIDTH = 2;
+  static final long DEFAULT_EXPIRY_BUCKET_MILLIS = HOURS.toMillis(1);
+  static final int DEFAULT_CLEANUP_BATCH_SIZE = 100;
+  static final long DEFAULT_WRITE_BEHIND_DELAY_MILLIS = 1000;
+  static final int DEFAULT_WRITE_BEHIND_BATCH_SIZE = 100;
+  static final int DEFAULT_WRITE_BEHIND_QUEUE_SIZE = 10000;
+  static final long DEFAULT_NEGATIVE_CACHE_TTL_MILLIS = SECONDS.toMillis(10);
+  static final long DEFAULT_CHANGE_POLL_INTERVAL_MILLIS = SECONDS.toMillis(10);
+  static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+  static final int MIN_SEGMENT_SIZE = 64 * 1024;
+  static final long DEFAULT_WARMUP_TIMEOUT_MILLIS = MINUTES.toMillis(1);
+  static final int DEFAULT_WARMUP_THREADS = 4;
+  static final long DEFAULT_IO_TIMEOUT_MILLIS = SECONDS.toMillis(5);
+  static final long DEFAULT_IO_BULK_TIMEOUT_MILLIS = MINUTES.toMillis(1);
+  static final int DEFAULT_BREAKER_THRESHOLD = 5;
+  static final long DEFAULT_BREAKER_OPEN_TIME_MILLIS = SECONDS.toMillis(30);
+  static final long DEFAULT_LOCAL_VALIDATION_INTERVAL_MILLIS = SECONDS.toMillis(5);
+  static final int DEFAULT_LOCAL_CACHE_SIZE = 100000;
+  static final long DEFAULT_CLEANUP_LEASE_TIMEOUT_MILLIS = HOURS.toMillis(1);
+
+  private final StoreType store;
+  private final int memoryCacheSize;
+  private final boolean compactFormat;
+  private final int shardDepth;
+  private final int shardWidth;
+  private final boolean checkFlatLayout;
+  private final boolean expiryBuckets;
+  private final long expiryBucketMillis;
+  private final int cleanupThreads;
+  private final int cleanupBatchSize;
+  private final double cleanupFilesPerSecond;
+  private final boolean writeBehind;
+  private final long writeBehindDelayMillis;
+  private final int writeBehindBatchSize;
+  private final int writeBehindQueueSize;
+  private final int negativeCacheSize;
+  private final long negativeCacheTtlMillis;
+  private final int segmentSize;
+  private final ChangeDetection changeDetection;
+  private final SizeMode sizeMode;
+  private final boolean accountIndex;
+  private final int warmupSessions;
+  private final long warmupTimeoutMillis;
+  private final int warmupThreads;
+  private final int bulkThreads;
+  private final int ioConcurrency;
+  private final long ioTimeoutMillis;
+  private final long ioBulkTimeoutMillis;
+  private final int breakerThreshold;
+  private final long breakerOpenTimeMillis;
+  @Nullable private final Path localDirectory;
+  private final long localValidationIntervalMillis;
+  private final int localCacheSize;
+  private final boolean cleanupLease;
+  private final long cleanupLeaseTimeoutMillis;
+  private final long changePollIntervalMillis;
+
+  @Inject
+  Configuration(PluginConfigFactory cfgFactory, @PluginName String pluginName) {
+    this(cfgFactory.getFromGerritConfig(pluginName));
+  }
+
+  @VisibleForTesting
+  Configuration(PluginConfig cfg) {
+    store = cfg.getEnum("store", StoreType.FLAT);
+    memoryCacheSize = Math.max(0, cfg.getInt("memoryCacheSize", DEFAULT_MEMORY_CACHE_SIZE));
+    compactFormat = cfg.getBoolean("compactFormat", false);
+    shardDepth = cfg.getInt("shardDepth", 0);
+    shardWidth = cfg.getInt("shardWidth", DEFAULT_SHARD_WIDTH);
+    if (shardDepth < 0
+        || shardDepth > SessionLayout.MAX_DEPTH
+        || shardWidth < 1
+        || shardWidth > SessionLayout.MAX_WIDTH) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Invalid shard layout %d x %d: depth must be in [0, %d] and width in [1, %d]",
+              shardDepth, shardWidth, SessionLayout.MAX_DEPTH, SessionLayout.MAX_WIDTH));
+    }
+    checkFlatLayout = cfg.getBoolean("checkFlatLayout", true);
+    expiryBuckets = cfg.getBoolean("expiryBuckets", false);
+    expiryBucketMillis =
+        Math.max(1, getTimeUnit(cfg, "expiryBucketSize", DEFAULT_EXPIRY_BUCKET_MILLIS));
+    cleanupThreads = Math.max(1, cfg.getInt("cleanupThreads", 1));
+    cleanupBatchSize = Math.max(1, cfg.getInt("cleanupBatchSize", DEFAULT_CLEANUP_BATCH_SIZE));
+    // Fractional rates, e.g. 0.5, throttle cleanups of slow filesystems further.
+    double cleanupRate = getDouble(cfg, "cleanupRate", 0);
+    cleanupFilesPerSecond = Double.isFinite(cleanupRate) ? Math.max(0, cleanupRate) : 0;
+    writeBehind = cfg.getBoolean("writeBehind", false);
+    writeBehindDelayMillis =
+        Math.max(1, getTimeUnit(cfg, "writeBehindDelay", DEFAULT_WRITE_BEHIND_DELAY_MILLIS));
+    writeBehindBatchSize =
+        Math.max(1, cfg.getInt("writeBehindBatchSize", DEFAULT_WRITE_BEHIND_BATCH_SIZE));
+    writeBehindQueueSize =
+        Math.max(1, cfg.getInt("writeBehindQueueSize", DEFAULT_WRITE_BEHIND_QUEUE_SIZE));
+    negativeCacheSize = Math.max(0, cfg.getInt("negativeCacheSize", 0));
+    negativeCacheTtlMillis =
+        Math.max(0, getTimeUnit(cfg, "negativeCacheTtl", DEFAULT_NEGATIVE_CACHE_TTL_MILLIS));
+    segmentSize =
+        (int)
+            Math.min(
+                Integer.MAX_VALUE,
+                Math.max(MIN_SEGMENT_SIZE, cfg.getLong("segmentSize", DEFAULT_SEGMENT_SIZE)));
+    changeDetection = cfg.getEnum("changeDetection", ChangeDetection.STAT);
+    changePollIntervalMillis =
+        Math.max(1, getTimeUnit(cfg, "changePollInterval", DEFAULT_CHANGE_POLL_INTERVAL_MILLIS));
+    sizeMode = cfg.getEnum("sizeMode", SizeMode.EXACT);
+    accountIndex = cfg.getBoolean("accountIndex", false);
+    warmupSessions = Math.max(0, cfg.getInt("warmupSessions", 0));
+    warmupTimeoutMillis =
+        Math.max(0, getTimeUnit(cfg, "warmupTimeout", DEFAULT_WARMUP_TIMEOUT_MILLIS));
+    warmupThreads = Math.max(1, cfg.getInt("warmupThreads", DEFAULT_WARMUP_THREADS));
+    bulkThreads = Math.max(1, cfg.getInt("bulkThreads", 1));
+    ioConcurrency = Math.max(0, cfg.getInt("ioConcurrency", 0));
+    ioTimeoutMillis = Math.max(1, getTimeUnit(cfg, "ioTimeout", DEFAULT_IO_TIMEOUT_MILLIS));
+    ioBulkTimeoutMillis =
+        Math.max(1, getTimeUnit(cfg, "ioBulkTimeout", DEFAULT_IO_BULK_TIMEOUT_MILLIS));
+    breakerThreshold = Math.max(1, cfg.getInt("breakerThreshold", DEFAULT_BREAKER_THRESHOLD));
+    breakerOpenTimeMillis =
+        Math.max(1, getTimeUnit(cfg, "breakerOpenTime", DEFAULT_BREAKER_OPEN_TIME_MILLIS));
+    String local = cfg.getString("localDirectory");
+    localDirectory = Strings.isNullOrEmpty(local) ? null : Paths.get(local);
+    localValidationIntervalMillis =
+        Math.max(
+            0,
+            getTimeUnit(cfg, "localValidationInterval", DEFAULT_LOCAL_VALIDATION_INTERVAL_MILLIS));
+    localCacheSize = Math.max(1, cfg.getInt("localCacheSize", DEFAULT_LOCAL_CACHE_SIZE));
+    cleanupLease = cfg.getBoolean("cleanupLease", false);
+    cleanupLeaseTimeoutMillis =
+        Math.max(1, getTimeUnit(cfg, "cleanupLeaseTimeout", DEFAULT_CLEANUP_LEASE_TIMEOUT_MILLIS));
+  }
+
+  private static long getTimeUnit(PluginConfig cfg, String name, long defaultMillis) {
+    return ConfigUtil.getTimeUnit(
+        Strings.nullToEmpty(cfg.getString(name)), defaultMillis, MILLISECONDS);
+  }
+
+  private static double getDouble(PluginConfig cfg, String name, double defaultValue) {
+    String value = cfg.getString(name);
+    if (Strings.isNullOrEmpty(value)) {
+      return defaultValue;
+    }
+    try {
+      return Double.parseDouble(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(
+          String.format("Invalid %s: %s is not a number", name, value), e);
+    }
+  }
+
+  /** Implementation storing the sessions. */
+  StoreType getStore() {
+    return store;
+  }
+
+  /** Maximum number of sessions kept on heap, {@code 0} disables the in-memory tier. */
+  int getMemoryCacheSize() {
+    return memoryCacheSize;
+  }
+
+  /** Whether sessions are written in the compact binary format rather than serialized. */
+  boolean isCompactFormat() {
+    return compactFormat;
+  }
+
+  /** Number of levels of shard directories, {@code 0} stores all sessions in one directory. */
+  int getShardDepth() {
+    return shardDepth;
+  }
+
+  /** Number of hex characters naming each level of shard directories. */
+  int getShardWidth() {
+    return shardWidth;
+  }
+
+  /** Whether sessions stored directly in the directory by the flat layout are still looked up. */
+  boolean isCheckFlatLayout() {
+    return checkFlatLayout;
+  }
+
+  /** Whether sessions are indexed by expiry so that cleanup only visits expired ones. */
+  boolean isExpiryBuckets() {
+    return expiryBuckets;
+  }
+
+  /** Span of expiry times grouped in one bucket. */
+  long getExpiryBucketMillis() {
+    return expiryBucketMillis;
+  }
+
+  /** Number of threads processing session files during cleanup. */
+  int getCleanupThreads() {
+    return cleanupThreads;
+  }
+
+  /** Number of session files handed to a cleanup thread at once. */
+  int getCleanupBatchSize() {
+    return cleanupBatchSize;
+  }
+
+  /** Maximum number of session files processed per second by cleanup, {@code 0} if unbounded. */
+  double getCleanupFilesPerSecond() {
+    return cleanupFilesPerSecond;
+  }
+
+  /** Whether sessions are written by a background thread rather than by the caller of put. */
+  boolean isWriteBehind() {
+    return writeBehind;
+  }
+
+  /** Maximum time a session put in write-behind mode waits before it is written. */
+  long getWriteBehindDelayMillis() {
+    return writeBehindDelayMillis;
+  }
+
+  /** Number of pending sessions that triggers a write-behind flush before the delay elapsed. */
+  int getWriteBehindBatchSize() {
+    return writeBehindBatchSize;
+  }
+
+  /** Maximum number of pending sessions, further puts of other sessions are written directly. */
+  int getWriteBehindQueueSize() {
+    return writeBehindQueueSize;
+  }
+
+  /** Maximum number of keys remembered as missing, {@code 0} disables the negative cache. */
+  int getNegativeCacheSize() {
+    return negativeCacheSize;
+  }
+
+  /** Time a key is remembered as missing. */
+  long getNegativeCacheTtlMillis() {
+    return negativeCacheTtlMillis;
+  }
+
+  /** Size in bytes of the files the segment store appends sessions to. */
+  int getSegmentSize() {
+    return segmentSize;
+  }
+
+  /** How sessions kept in memory are checked for changes made by other masters. */
+  ChangeDetection getChangeDetection() {
+    return changeDetection;
+  }
+
+  /** Interval at which sessions kept in memory are compared with the store when polling. */
+  long getChangePollIntervalMillis() {
+    return changePollIntervalMillis;
+  }
+
+  /** How the number of sessions reported by the cache is determined. */
+  SizeMode getSizeMode() {
+    return sizeMode;
+  }
+
+  /** Whether sessions are indexed by account, see {@link AccountIndex}. */
+  boolean isAccountIndex() {
+    return accountIndex;
+  }
+
+  /** Maximum number of sessions preloaded into memory on start, {@code 0} disables it. */
+  int getWarmupSessions() {
+    return warmupSessions;
+  }
+
+  /** Time after which preloading sessions on start is stopped. */
+  long getWarmupTimeoutMillis() {
+    return warmupTimeoutMillis;
+  }
+
+  /** Number of sessions read in parallel when preloading them on start. */
+  int getWarmupThreads() {
+    return warmupThreads;
+  }
+
+  /** Maximum number of sessions read or written concurrently by bulk operations. */
+  int getBulkThreads() {
+    return bulkThreads;
+  }
+
+  /**
+   * Maximum number of store operations running at once, {@code 0} disables {@link
+   * GuardedSessionStore}.
+   */
+  int getIoConcurrency() {
+    return ioConcurrency;
+  }
+
+  /** Time after which a store operation is given up. */
+  long getIoTimeoutMillis() {
+    return ioTimeoutMillis;
+  }
+
+  /** Time after which a store operation on all sessions, e.g. counting them, is given up. */
+  long getIoBulkTimeoutMillis() {
+    return ioBulkTimeoutMillis;
+  }
+
+  /** Number of consecutive failed store operations that opens the circuit breaker. */
+  int getBreakerThreshold() {
+    return breakerThreshold;
+  }
+
+  /** Time during which store operations fail fast once the circuit breaker opened. */
+  long getBreakerOpenTimeMillis() {
+    return breakerOpenTimeMillis;
+  }
+
+  /**
+   * Directory on local disk mirroring the sessions used on this master, {@code null} disables
+   * {@link TwoTierSessionStore}.
+   */
+  @Nullable
+  Path getLocalDirectory() {
+    return localDirectory;
+  }
+
+  /** Time during which a local copy of a session is served without checking the shared store. */
+  long getLocalValidationIntervalMillis() {
+    return localValidationIntervalMillis;
+  }
+
+  /** Maximum number of sessions copied to the local directory. */
+  int getLocalCacheSize() {
+    return localCacheSize;
+  }
+
+  /** Whether the masters sharing the websessions directory take turns to clean it up. */
+  boolean isCleanupLease() {
+    return cleanupLease;
+  }
+
+  /** Time after which the cleanup lease of a master that did not finish can be taken over. */
+  long getCleanupLeaseTimeoutMillis() {
+    return cleanupLeaseTimeoutMillis;
+  }
+}
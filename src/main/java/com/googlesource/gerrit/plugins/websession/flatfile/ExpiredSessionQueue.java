@@ -0,0 +1,97 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * Keys of sessions found expired by lookups, deleted in batches off the request thread.
+ *
+ * <p>Keys added while the queue is full are left to the next cleanup.
+ */
+class ExpiredSessionQueue {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  private final Set<String> pending = ConcurrentHashMap.newKeySet();
+  private final AtomicBoolean drainRequested = new AtomicBoolean();
+  private final Predicate<String> deleter;
+  private final int batchSize;
+  private final int capacity;
+  @Nullable private volatile Executor executor;
+
+  /**
+   * @param deleter deletes a session if it is still expired, returns whether it was deleted.
+   * @param batchSize number of pending keys that triggers a drain on the executor.
+   * @param capacity maximum number of pending keys.
+   */
+  ExpiredSessionQueue(Predicate<String> deleter, int batchSize, int capacity) {
+    this.deleter = deleter;
+    this.batchSize = batchSize;
+    this.capacity = capacity;
+  }
+
+  /** Runs drains triggered by the batch size on {@code executor}, {@code null} to stop. */
+  void setExecutor(@Nullable Executor executor) {
+    this.executor = executor;
+  }
+
+  void add(String key) {
+    if (pending.size() >= capacity) {
+      return;
+    }
+    if (pending.add(key) && pending.size() >= batchSize) {
+      requestDrain();
+    }
+  }
+
+  int size() {
+    return pending.size();
+  }
+
+  /**
+   * Deletes the sessions of all pending keys that are still expired.
+   *
+   * @return number of sessions deleted.
+   */
+  int drain() {
+    drainRequested.set(false);
+    int deleted = 0;
+    for (String key : pending) {
+      if (pending.remove(key) && deleter.test(key)) {
+        deleted++;
+      }
+    }
+    return deleted;
+  }
+
+  private void requestDrain() {
+    Executor e = executor;
+    if (e != null && drainRequested.compareAndSet(false, true)) {
+      try {
+        e.execute(this::drain);
+      } catch (RejectedExecutionException ex) {
+        drainRequested.set(false);
+        log.atFine().withCause(ex).log("Expired session executor is shut down");
+      }
+    }
+  }
+}
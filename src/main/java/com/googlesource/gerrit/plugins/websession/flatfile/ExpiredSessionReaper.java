@@ -0,0 +1,79 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Deletes the sessions found expired by lookups in the background, once enough of them are queued
+ * and otherwise every few seconds.
+ */
+@Singleton
+class ExpiredSessionReaper implements LifecycleListener {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  private static final long DELETE_DELAY_SECONDS = 10;
+
+  private final WorkQueue queue;
+  private final FlatFileWebSessionCache flatFileWebSessionCache;
+  private ScheduledExecutorService deleteExecutor;
+  private ScheduledFuture<?> scheduledDeleteTask;
+
+  @Inject
+  ExpiredSessionReaper(WorkQueue queue, FlatFileWebSessionCache flatFileWebSessionCache) {
+    this.queue = queue;
+    this.flatFileWebSessionCache = flatFileWebSessionCache;
+  }
+
+  @Override
+  public void start() {
+    deleteExecutor = queue.createQueue(1, "WebSessionExpiry");
+    flatFileWebSessionCache.setExpiryExecutor(deleteExecutor);
+    scheduledDeleteTask =
+        deleteExecutor.scheduleWithFixedDelay(
+            this::deleteExpired, DELETE_DELAY_SECONDS, DELETE_DELAY_SECONDS, SECONDS);
+  }
+
+  @Override
+  public void stop() {
+    if (scheduledDeleteTask != null) {
+      scheduledDeleteTask.cancel(false);
+      scheduledDeleteTask = null;
+    }
+    if (deleteExecutor != null) {
+      // Sessions still queued are deleted by the next cleanup.
+      flatFileWebSessionCache.setExpiryExecutor(null);
+      deleteExecutor.shutdown();
+      deleteExecutor = null;
+    }
+  }
+
+  private void deleteExpired() {
+    try {
+      flatFileWebSessionCache.deleteExpiredSessions();
+    } catch (Exception e) {
+      // Do not prevent subsequent scheduled deletions from running.
+      log.atSevere().withCause(e).log("Cannot delete expired websessions");
+    }
+  }
+}
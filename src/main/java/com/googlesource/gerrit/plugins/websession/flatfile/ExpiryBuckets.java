@@ -0,0 +1,110 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import com.google.common.flogger.FluentLogger;
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.function.Predicate;
+
+/**
+ * Index of sessions by expiry time.
+ *
+ * <p>Each session has an empty marker file named after its key in the bucket directory covering its
+ * expiry, e.g. {@code .buckets/1700000000000/<key>} for a session expiring before that time. Once
+ * that time has passed, all sessions of the bucket can be deleted unless they were extended in the
+ * meantime, in which case they also have a marker in a later bucket.
+ */
+class ExpiryBuckets extends MarkerIndex {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  static final String DIRECTORY = ".buckets";
+
+  private final long bucketMillis;
+
+  ExpiryBuckets(Path websessionsDir, long bucketMillis) {
+    super(websessionsDir.resolve(DIRECTORY), "expiry bucket");
+    this.bucketMillis = Math.max(bucketMillis, 1);
+  }
+
+  /** End of the bucket containing {@code expiresAt}, i.e. the time all its sessions expired. */
+  long bucketOf(long expiresAt) {
+    return Math.floorDiv(expiresAt, bucketMillis) * bucketMillis + bucketMillis;
+  }
+
+  void add(String key, long expiresAt) {
+    addMarker(Long.toString(bucketOf(expiresAt)), key);
+  }
+
+  void remove(String key, long expiresAt) {
+    removeMarker(Long.toString(bucketOf(expiresAt)), key);
+  }
+
+  /**
+   * Passes the keys of all buckets ending before {@code now} to {@code expired}, then deletes the
+   * buckets. Buckets that have not ended are not listed.
+   *
+   * @param scanner runs {@code expired} on the sessions of each bucket.
+   * @param expired called with the key of each session of an expired bucket, returns whether its
+   *     marker can be removed.
+   * @return number of buckets deleted.
+   */
+  int removeExpired(Instant now, SessionScanner scanner, Predicate<String> expired)
+      throws IOException {
+    int removed = 0;
+    try (DirectoryStream<Path> buckets = Files.newDirectoryStream(dir)) {
+      for (Path bucket : buckets) {
+        long end;
+        try {
+          end = Long.parseLong(bucket.getFileName().toString());
+        } catch (NumberFormatException e) {
+          continue;
+        }
+        if (end > now.toEpochMilli()) {
+          continue;
+        }
+        boolean complete;
+        try (DirectoryStream<Path> markers = Files.newDirectoryStream(bucket)) {
+          complete =
+              scanner.forEach(
+                  markers.iterator(),
+                  marker -> {
+                    if (expired.test(marker.getFileName().toString())) {
+                      try {
+                        Files.deleteIfExists(marker);
+                      } catch (IOException e) {
+                        log.atWarning().withCause(e).log("Cannot delete %s", marker);
+                      }
+                    }
+                  });
+        }
+        if (!complete) {
+          break;
+        }
+        try {
+          Files.delete(bucket);
+          removed++;
+        } catch (DirectoryNotEmptyException e) {
+          // A session expiring in that bucket was put meanwhile, retry next time.
+        }
+      }
+    }
+    return removed;
+  }
+}
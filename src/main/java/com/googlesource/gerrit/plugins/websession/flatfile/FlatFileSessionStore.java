@@ -0,0 +1,779 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Bytes;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.httpd.WebSessionManager.Val;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.websession.flatfile.FlatFileWebSessionCache.TimeMachine;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Stores each session in its own file of the websessions directory, named after the session key.
+ *
+ * <p>Files are written to a temporary file in the {@code .staging} subdirectory and atomically
+ * renamed, with the session expiry as modification time. The directory can be shared by several
+ * masters.
+ */
+@Singleton
+class FlatFileSessionStore implements SessionStore {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  static final String STAGING = ".staging";
+
+  /**
+   * Cleanups using the expiry buckets do not list the directory. Every this many of them, the
+   * approximate count is reconciled by listing it, to account for other masters.
+   */
+  static final int RECOUNT_CLEANUPS = 7;
+
+  /** Identity of a session file as seen by a single {@code stat} call, used as its version. */
+  static class FileSignature {
+    @Nullable private final Object fileKey;
+    private final long lastModified;
+    private final long size;
+
+    static FileSignature of(BasicFileAttributes attrs) {
+      return new FileSignature(attrs.fileKey(), attrs.lastModifiedTime().toMillis(), attrs.size());
+    }
+
+    FileSignature(@Nullable Object fileKey, long lastModified, long size) {
+      this.fileKey = fileKey;
+      this.lastModified = lastModified;
+      this.size = size;
+    }
+
+    long size() {
+      return size;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof FileSignature)) {
+        return false;
+      }
+      FileSignature o = (FileSignature) other;
+      return Objects.equals(fileKey, o.fileKey)
+          && lastModified == o.lastModified
+          && size == o.size;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(fileKey, lastModified, size);
+    }
+  }
+
+  private final Path websessionsDir;
+  private final Path staging;
+  /** Prefix of the temporary files of this store, unique among masters and restarts. */
+  private final String tempPrefix = UUID.randomUUID() + "-";
+  private final AtomicLong tempCounter = new AtomicLong();
+  private final SessionLayout layout;
+  private final SessionCodec codec;
+  @Nullable private final ExpiryBuckets buckets;
+  @Nullable private final AccountIndex accounts;
+  private final SessionScanner scanner;
+  private final WebSessionMetrics metrics;
+  /** Number of session files in approximate size mode, {@code null} when they are listed. */
+  @Nullable private final AtomicLong approximateCount;
+  private volatile boolean countInitialized;
+  /** Cleanups using the expiry buckets since the approximate count was last reconciled. */
+  private final AtomicInteger cleanupsSinceRecount = new AtomicInteger();
+  /** Temporary files seen by the last {@link #deleteOrphans()}, orphaned if still present. */
+  private Set<Path> tempFilesSeen = ImmutableSet.of();
+  /** Whether the directory may have temporary files written by earlier versions of the plugin. */
+  private boolean legacyTempFilesPresent = true;
+
+  @Inject
+  FlatFileSessionStore(
+      @WebSessionDir Path websessionsDir,
+      Configuration config,
+      SessionScanner scanner,
+      WebSessionMetrics metrics)
+      throws IOException {
+    this(
+        websessionsDir,
+        new SessionLayout(
+            websessionsDir,
+            config.getShardDepth(),
+            config.getShardWidth(),
+            config.isCheckFlatLayout()),
+        config.isCompactFormat(),
+        config.isExpiryBuckets()
+            ? new ExpiryBuckets(websessionsDir, config.getExpiryBucketMillis())
+            : null,
+        config.isAccountIndex() ? new AccountIndex(websessionsDir) : null,
+        config.getSizeMode() == Configuration.SizeMode.APPROXIMATE,
+        scanner,
+        metrics);
+  }
+
+  /**
+   * Creates a store of sessions that only this master uses, such as the local copies of {@link
+   * TwoTierSessionStore}: without indexes, approximate count or lookups in the flat layout.
+   */
+  FlatFileSessionStore(
+      Path websessionsDir,
+      boolean compactFormat,
+      int shardDepth,
+      int shardWidth,
+      SessionScanner scanner,
+      WebSessionMetrics metrics)
+      throws IOException {
+    this(
+        websessionsDir,
+        new SessionLayout(websessionsDir, shardDepth, shardWidth, false),
+        compactFormat,
+        null,
+        null,
+        false,
+        scanner,
+        metrics);
+  }
+
+  private FlatFileSessionStore(
+      Path websessionsDir,
+      SessionLayout layout,
+      boolean compactFormat,
+      @Nullable ExpiryBuckets buckets,
+      @Nullable AccountIndex accounts,
+      boolean approximateSize,
+      SessionScanner scanner,
+      WebSessionMetrics metrics)
+      throws IOException {
+    this.websessionsDir = websessionsDir;
+    this.staging = websessionsDir.resolve(STAGING);
+    this.scanner = scanner;
+    this.metrics = metrics;
+    this.layout = layout;
+    this.codec = new SessionCodec(compactFormat);
+    this.buckets = buckets;
+    this.accounts = accounts;
+    this.approximateCount = approximateSize ? new AtomicLong() : null;
+    Files.createDirectories(websessionsDir);
+  }
+
+  @Override
+  @Nullable
+  public Object version(String key) {
+    Path path = layout.pathOf(key);
+    FileSignature signature = readSignature(path);
+    if (signature == null) {
+      Path legacy = layout.legacyPathOf(key);
+      if (legacy != null) {
+        signature = readSignature(legacy);
+        if (signature == null) {
+          // Check again in case the file was migrated in the meantime.
+          signature = readSignature(path);
+        }
+      }
+    }
+    return signature;
+  }
+
+  @Override
+  @Nullable
+  public Val read(String key) {
+    Val val = readFile(layout.pathOf(key));
+    if (val == null) {
+      Path legacy = layout.legacyPathOf(key);
+      if (legacy != null) {
+        val = readFile(legacy);
+      }
+    }
+    return val;
+  }
+
+  @Override
+  @Nullable
+  public Object write(String key, Val value, @Nullable Versioned previous) throws IOException {
+    Path target = layout.pathOf(key);
+    byte[] data = codec.encode(value);
+    if (previous != null && isUnchanged(target, previous, data)) {
+      metrics.recordPutUnchanged();
+      return previous.version();
+    }
+    Path tempFile = writeTempFile(data);
+    // The modification time tells the cleanup when the session expires
+    // without opening the file.
+    Files.setLastModifiedTime(tempFile, FileTime.fromMillis(value.getExpiresAt()));
+    // The rename keeps the file key and times, so the signature seen by
+    // later lookups is the one of the temporary file.
+    FileSignature signature =
+        FileSignature.of(Files.readAttributes(tempFile, BasicFileAttributes.class));
+    boolean created = approximateCount != null && previous == null && !Files.exists(target);
+    moveTempFile(tempFile, target);
+    layout.deleteLegacy(key);
+    if (created) {
+      approximateCount.incrementAndGet();
+    }
+    if (buckets != null) {
+      moveToExpiryBucket(key, previous != null ? previous.val() : null, value);
+    }
+    if (accounts != null) {
+      moveToAccount(key, previous != null ? previous.val() : null, value);
+    }
+    metrics.recordWrite(data.length);
+    return signature;
+  }
+
+  @Override
+  public void delete(String key) {
+    if (accounts != null) {
+      deleteSession(locate(key));
+    } else {
+      deleteFile(layout.pathOf(key));
+    }
+    layout.deleteLegacy(key);
+  }
+
+  @Override
+  public void deleteAll() {
+    foreachSession(this::deleteFile);
+  }
+
+  @Override
+  public Stream<String> keys() {
+    return sessionStream().map(SessionLayout::keyOf);
+  }
+
+  @Override
+  public long count() {
+    if (approximateCount == null) {
+      return SessionStore.super.count();
+    }
+    if (!countInitialized) {
+      recount();
+    }
+    return Math.max(0, approximateCount.get());
+  }
+
+  @Override
+  public ImmutableList<String> keysOf(Account.Id accountId) {
+    // Once initialized, the index is trusted: it misses the sessions stored by masters without
+    // accountIndex, which must therefore be enabled on all masters together.
+    if (accounts == null || !accounts.isInitialized()) {
+      return SessionStore.super.keysOf(accountId);
+    }
+    ImmutableList.Builder<String> keys = ImmutableList.builder();
+    try {
+      for (String key : accounts.keysOf(accountId)) {
+        if (accountId.equals(readAccountId(locate(key)))) {
+          keys.add(key);
+        } else {
+          // Deleted or replaced by a master not maintaining the index.
+          accounts.remove(key, accountId);
+        }
+      }
+    } catch (IOException e) {
+      log.atSevere().withCause(e).log("Cannot list account index in cache %s", websessionsDir);
+      return SessionStore.super.keysOf(accountId);
+    }
+    return keys.build();
+  }
+
+  @Override
+  @Nullable
+  public Long expiresAt(String key) {
+    return readExpiresAt(locate(key), TimeMachine.now());
+  }
+
+  @Override
+  public long deleteExpired(Instant now, Consumer<String> deleted) {
+    if (layout.checksFlatLayout()) {
+      // Sessions stored meanwhile by masters not using the shards yet.
+      try {
+        int moved = migrateLayout();
+        if (moved > 0) {
+          log.atInfo().log("Moved %d websessions into shard directories", moved);
+        }
+      } catch (IOException e) {
+        log.atWarning().withCause(e).log(
+            "Cannot move websessions into shards in %s", websessionsDir);
+      }
+    }
+    LongAdder count = new LongAdder();
+    Consumer<String> onDelete =
+        key -> {
+          count.increment();
+          deleted.accept(key);
+        };
+    boolean indexAccounts = accounts != null && !accounts.isInitialized();
+    if (buckets != null && buckets.isInitialized() && !indexAccounts) {
+      try {
+        buckets.removeExpired(now, scanner, key -> deleteIfExpired(key, now, onDelete));
+      } catch (IOException e) {
+        log.atSevere().withCause(e).log("Cannot list expiry buckets in cache %s", websessionsDir);
+      }
+      if (approximateCount != null && cleanupsSinceRecount.incrementAndGet() >= RECOUNT_CLEANUPS) {
+        recount();
+      }
+      return count.sum();
+    }
+
+    if (buckets != null) {
+      try {
+        buckets.create();
+      } catch (IOException e) {
+        log.atSevere().withCause(e).log("Cannot create expiry buckets in cache %s", websessionsDir);
+      }
+    }
+    if (indexAccounts) {
+      try {
+        accounts.create();
+      } catch (IOException e) {
+        log.atSevere().withCause(e).log("Cannot create account index in cache %s", websessionsDir);
+      }
+    }
+    LongAdder visited = new LongAdder();
+    boolean complete =
+        scanSessions(
+            path -> {
+              visited.increment();
+              Long expiresAt = readExpiresAt(path, now);
+              if (expiresAt == null) {
+                return;
+              }
+              String key = SessionLayout.keyOf(path);
+              if (Instant.ofEpochMilli(expiresAt).isBefore(now)) {
+                if (deleteSession(path)) {
+                  onDelete.accept(key);
+                }
+                return;
+              }
+              if (buckets != null) {
+                buckets.add(key, expiresAt);
+              }
+              if (indexAccounts) {
+                Account.Id accountId = readAccountId(path);
+                if (accountId != null) {
+                  accounts.add(key, accountId);
+                }
+              }
+            });
+    if (buckets != null && complete) {
+      try {
+        buckets.markInitialized();
+      } catch (IOException e) {
+        log.atSevere().withCause(e).log("Cannot initialize expiry buckets in %s", websessionsDir);
+      }
+    }
+    if (indexAccounts && complete) {
+      try {
+        accounts.markInitialized();
+      } catch (IOException e) {
+        log.atSevere().withCause(e).log("Cannot initialize account index in %s", websessionsDir);
+      }
+    }
+    if (approximateCount != null && complete) {
+      // Also corrects the count for sessions stored or deleted by other masters.
+      approximateCount.set(visited.sum() - count.sum());
+      countInitialized = true;
+      cleanupsSinceRecount.set(0);
+    }
+    return count.sum();
+  }
+
+  /**
+   * Deletes the temporary files of writes interrupted by a crash. Writes take far less than the
+   * cleanup interval, so a temporary file that was already present on the previous call is
+   * orphaned. Temporary files left directly in the websessions directory by earlier versions of the
+   * plugin are deleted as well, until none is found.
+   */
+  @Override
+  public synchronized long deleteOrphans() {
+    Set<Path> seen = new HashSet<>();
+    listTempFiles(staging, seen);
+    if (legacyTempFilesPresent) {
+      int staged = seen.size();
+      boolean listed = listTempFiles(websessionsDir, seen);
+      legacyTempFilesPresent = !listed || seen.size() > staged;
+    }
+    long deleted = 0;
+    for (Path tempFile : seen) {
+      if (tempFilesSeen.contains(tempFile)) {
+        try {
+          if (Files.deleteIfExists(tempFile)) {
+            deleted++;
+          }
+        } catch (IOException e) {
+          log.atWarning().withCause(e).log("Cannot delete orphaned temporary file %s", tempFile);
+        }
+      }
+    }
+    tempFilesSeen = seen;
+    return deleted;
+  }
+
+  @Override
+  public String toString() {
+    return websessionsDir.toString();
+  }
+
+  /**
+   * Moves sessions stored by a flat layout into their shard.
+   *
+   * @return number of migrated sessions.
+   */
+  int migrateLayout() throws IOException {
+    if (!layout.isSharded()) {
+      return 0;
+    }
+    return layout.migrate(path -> readExpiresAt(path, TimeMachine.now()));
+  }
+
+  /**
+   * Whether the file on disk is still the one {@code previous} was read from or written to, and
+   * holds the same session as {@code data}, so that it need not be written again.
+   *
+   * <p>Sessions whose expiry was extended are written in full like any other change: the file may
+   * be replaced by another master at any time, so it is never updated in place, which could stamp
+   * the expiry of this master onto the file of the other one, or be seen half written by readers.
+   */
+  private boolean isUnchanged(Path target, Versioned previous, byte[] data) throws IOException {
+    FileSignature signature = readSignature(target);
+    if (signature == null || !signature.equals(previous.version())) {
+      return false;
+    }
+    byte[] stored = codec.encode(previous.val());
+    // Files of another size were written in another format, e.g. by an earlier version.
+    return stored.length == signature.size() && Arrays.equals(stored, data);
+  }
+
+  /**
+   * Writes {@code data} to a new temporary file in the staging directory. Names are made unique
+   * with a counter rather than random numbers, so that concurrent puts do not contend on a random
+   * number generator.
+   */
+  private Path writeTempFile(byte[] data) throws IOException {
+    Path tempFile =
+        staging.resolve(tempPrefix + tempCounter.incrementAndGet() + SessionLayout.TEMP_SUFFIX);
+    try {
+      Files.write(tempFile, data, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    } catch (NoSuchFileException e) {
+      // Fails if the websessions directory itself is missing.
+      try {
+        Files.createDirectory(staging);
+      } catch (FileAlreadyExistsException e2) {
+        // Created concurrently.
+      }
+      Files.write(tempFile, data, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+    return tempFile;
+  }
+
+  private void moveTempFile(Path tempFile, Path target) throws IOException {
+    try {
+      try {
+        Files.move(
+            tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (NoSuchFileException e) {
+        if (target.getParent().equals(websessionsDir)) {
+          throw e;
+        }
+        // First session of its shard.
+        Files.createDirectories(target.getParent());
+        Files.move(
+            tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+    } catch (IOException e) {
+      try {
+        Files.deleteIfExists(tempFile);
+      } catch (IOException e2) {
+        e.addSuppressed(e2);
+      }
+      throw e;
+    }
+  }
+
+  private void moveToExpiryBucket(String key, @Nullable Val previous, Val value) {
+    if (previous != null) {
+      if (buckets.bucketOf(previous.getExpiresAt()) == buckets.bucketOf(value.getExpiresAt())) {
+        return;
+      }
+      buckets.remove(key, previous.getExpiresAt());
+    }
+    buckets.add(key, value.getExpiresAt());
+  }
+
+  private void moveToAccount(String key, @Nullable Val previous, Val value) {
+    Account.Id accountId = value.getAccountId();
+    if (previous != null && previous.getAccountId() != null) {
+      if (previous.getAccountId().equals(accountId)) {
+        return;
+      }
+      accounts.remove(key, previous.getAccountId());
+    }
+    if (accountId != null) {
+      accounts.add(key, accountId);
+    }
+  }
+
+  /** Path of the file holding the session of {@code key}, in its shard or the flat layout. */
+  private Path locate(String key) {
+    Path path = layout.pathOf(key);
+    Path legacy = layout.legacyPathOf(key);
+    if (legacy != null && !Files.exists(path)) {
+      return legacy;
+    }
+    return path;
+  }
+
+  /** Stats a session file, returning {@code null} if it does not exist or cannot be read. */
+  @Nullable
+  private FileSignature readSignature(Path path) {
+    try {
+      return FileSignature.of(Files.readAttributes(path, BasicFileAttributes.class));
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot read attributes of %s", path);
+      return null;
+    }
+  }
+
+  /**
+   * Whether the session stored in {@code path} expired before {@code now}.
+   *
+   * <p>Sessions are written with their expiry as modification time, so files modified after {@code
+   * now} are still valid and are not opened. Other files are either expired or were written by an
+   * earlier version of the plugin: for these only the header is read, or the whole file if it is
+   * Java serialized.
+   */
+  private boolean isExpired(Path path, Instant now) {
+    Long expiresAt = readExpiresAt(path, now);
+    return expiresAt != null && Instant.ofEpochMilli(expiresAt).isBefore(now);
+  }
+
+  /**
+   * Deletes the session with the given key if it expired before {@code now}.
+   *
+   * @return {@code false} if the session is expired but could not be deleted.
+   */
+  private boolean deleteIfExpired(String key, Instant now, Consumer<String> deleted) {
+    Path path = locate(key);
+    if (isExpired(path, now)) {
+      if (!deleteSession(path)) {
+        return false;
+      }
+      deleted.accept(key);
+    }
+    return true;
+  }
+
+  /**
+   * Reads the expiry of the session stored in {@code path}, see {@link #isExpired(Path, Instant)}.
+   *
+   * @return expiry in epoch millis, or {@code null} if the file is missing or cannot be read. For
+   *     files modified after {@code now}, this is the modification time.
+   */
+  @Nullable
+  private Long readExpiresAt(Path path, Instant now) {
+    try {
+      FileTime lastModified = Files.getLastModifiedTime(path);
+      if (lastModified.toInstant().isAfter(now)) {
+        return lastModified.toMillis();
+      }
+      byte[] header = new byte[SessionCodec.HEADER_SIZE];
+      int read;
+      try (InputStream in = Files.newInputStream(path)) {
+        read = ByteStreams.read(in, header, 0, header.length);
+      }
+      Long expiresAt = read == header.length ? SessionCodec.readExpiresAt(header) : null;
+      if (expiresAt == null) {
+        Val val = readFile(path);
+        if (val == null) {
+          return null;
+        }
+        expiresAt = val.getExpiresAt();
+      }
+      return expiresAt;
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot read expiry of %s", path);
+      return null;
+    }
+  }
+
+  /**
+   * Reads the account of the session stored in {@code path}. Only the start of files in the compact
+   * format is read.
+   *
+   * @return the account id, {@code null} if the session has none or the file cannot be read.
+   */
+  @Nullable
+  private Account.Id readAccountId(Path path) {
+    byte[] head = new byte[SessionCodec.ACCOUNT_ID_OFFSET + Integer.BYTES];
+    try (InputStream in = Files.newInputStream(path)) {
+      int read = ByteStreams.read(in, head, 0, head.length);
+      if (SessionCodec.isCompact(Arrays.copyOf(head, read))) {
+        return SessionCodec.readAccountId(head, read);
+      }
+      // Java serialized by an earlier version of the plugin.
+      byte[] data = Bytes.concat(Arrays.copyOf(head, read), ByteStreams.toByteArray(in));
+      return codec.decode(data).getAccountId();
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException | ClassNotFoundException e) {
+      log.atWarning().withCause(e).log("Cannot read account of %s", path);
+      return null;
+    }
+  }
+
+  @Nullable
+  private Val readFile(Path path) {
+    try {
+      byte[] data = Files.readAllBytes(path);
+      metrics.recordRead(data.length);
+      return codec.decode(data);
+    } catch (NoSuchFileException e) {
+      // Concurrently deleted, e.g. by the cleanup of another master.
+    } catch (ClassNotFoundException e) {
+      metrics.recordReadFailure();
+      log.atWarning().log(
+          "Entry %s in cache %s has an incompatible class and can't be"
+              + " deserialized. Invalidating entry.",
+          path, websessionsDir);
+      log.atFine().withCause(e).log("Exception message %s", e.getMessage());
+      delete(SessionLayout.keyOf(path));
+    } catch (IOException e) {
+      metrics.recordReadFailure();
+      log.atWarning().withCause(e).log("Cannot read cache %s", path);
+    }
+    return null;
+  }
+
+  /**
+   * Deletes the session file {@code path} and its marker in the account index.
+   *
+   * @return {@code false} if the file could not be deleted.
+   */
+  private boolean deleteSession(Path path) {
+    Account.Id accountId = accounts != null ? readAccountId(path) : null;
+    if (!deleteFile(path)) {
+      return false;
+    }
+    if (accountId != null) {
+      accounts.remove(SessionLayout.keyOf(path), accountId);
+    }
+    return true;
+  }
+
+  private boolean deleteFile(Path path) {
+    try {
+      if (Files.deleteIfExists(path) && approximateCount != null) {
+        approximateCount.decrementAndGet();
+      }
+      return true;
+    } catch (IOException e) {
+      log.atSevere().withCause(e).log("Error trying to delete %s from %s", path, websessionsDir);
+      return false;
+    }
+  }
+
+  /** Passes all session files to {@code sessionPath}, returns whether they could be listed. */
+  private boolean foreachSession(Consumer<Path> sessionPath) {
+    try (Stream<Path> sessions = layout.sessionFiles()) {
+      sessions.forEach(sessionPath);
+      return true;
+    } catch (IOException | UncheckedIOException e) {
+      log.atSevere().withCause(e).log("Cannot list files in cache %s", websessionsDir);
+      return false;
+    }
+  }
+
+  /**
+   * Processes all session files with the cleanup {@link SessionScanner}.
+   *
+   * @return whether all files were listed and processed.
+   */
+  private boolean scanSessions(Consumer<Path> sessionPath) {
+    try (Stream<Path> sessions = layout.sessionFiles()) {
+      return scanner.forEach(sessions.iterator(), sessionPath);
+    } catch (IOException | UncheckedIOException e) {
+      log.atSevere().withCause(e).log("Cannot list files in cache %s", websessionsDir);
+      return false;
+    }
+  }
+
+  /**
+   * Adds the temporary files of {@code dir} to {@code tempFiles}.
+   *
+   * @return whether {@code dir} could be listed.
+   */
+  private boolean listTempFiles(Path dir, Set<Path> tempFiles) {
+    try (DirectoryStream<Path> files =
+        Files.newDirectoryStream(dir, "*" + SessionLayout.TEMP_SUFFIX)) {
+      files.forEach(tempFiles::add);
+      return true;
+    } catch (NoSuchFileException e) {
+      return true;
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot list temporary files in %s", dir);
+      return false;
+    }
+  }
+
+  /** Sets the approximate count to the number of session files. */
+  private void recount() {
+    try (Stream<Path> sessions = layout.sessionFiles()) {
+      approximateCount.set(sessions.count());
+      countInitialized = true;
+      cleanupsSinceRecount.set(0);
+    } catch (IOException | UncheckedIOException e) {
+      log.atSevere().withCause(e).log("Cannot count files in cache %s", websessionsDir);
+    }
+  }
+
+  private Stream<Path> sessionStream() {
+    try {
+      return layout.sessionFiles();
+    } catch (IOException e) {
+      log.atSevere().withCause(e).log("Cannot traverse files in cache %s", websessionsDir);
+      return Stream.empty();
+    }
+  }
+}
@@ -14,43 +14,63 @@
 
 package com.googlesource.gerrit.plugins.websession.flatfile;
 
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Streams;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.Account;
 import com.google.gerrit.httpd.WebSessionManager;
 import com.google.gerrit.httpd.WebSessionManager.Val;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.websession.flatfile.SessionStore.Versioned;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.time.Clock;
 import java.time.Instant;
 import java.time.ZoneId;
-import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.UUID;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
-import java.util.function.Consumer;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
 import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 
 @Singleton
 public class FlatFileWebSessionCache implements Cache<String, WebSessionManager.Val> {
   private static final FluentLogger log = FluentLogger.forEnclosingClass();
 
+  /** Number of sessions found expired by lookups that triggers their deletion. */
+  private static final int EXPIRED_BATCH_SIZE = 100;
+
+  /** Maximum number of sessions found expired by lookups that wait for their deletion. */
+  private static final int EXPIRED_QUEUE_CAPACITY = 10_000;
+
+  /** Version of sessions kept in memory because the store was unavailable when they were put. */
+  private static final Object UNWRITTEN = new Object();
+
   /** Provides static methods to set the system clock for testing purposes only. */
   static class TimeMachine {
     private static Clock clock = Clock.systemDefaultZone();
@@ -76,46 +96,121 @@ public class FlatFileWebSessionCache implements Cache<String, WebSessionManager.
     }
   }
 
-  private final Path websessionsDir;
+  private final SessionStore store;
+  private final LocalWebSessionCache localCache;
+  private final NegativeLookupCache negativeCache;
+  private final WebSessionMetrics metrics;
+  @Nullable private final WriteBehindQueue writeBehind;
+  private final ExpiredSessionQueue expiredSessions;
+  /** Loads in progress in {@link #get(String, Callable)}, only holds keys being loaded. */
+  private final ConcurrentMap<String, Load> loading = new ConcurrentHashMap<>();
+  private volatile boolean watched;
+  /** Number of sessions last counted, reported while the store is unavailable. */
+  private volatile long lastSize;
+  private final int bulkThreads;
+  @Nullable private volatile Executor bulkExecutor;
 
   @Inject
-  public FlatFileWebSessionCache(@WebSessionDir Path websessionsDir) throws IOException {
-    this.websessionsDir = websessionsDir;
-    Files.createDirectories(websessionsDir);
+  public FlatFileWebSessionCache(
+      SessionStore store, Configuration config, WebSessionMetrics metrics) {
+    this.store = store;
+    this.metrics = metrics;
+    this.bulkThreads = config.getBulkThreads();
+    this.localCache = new LocalWebSessionCache(config.getMemoryCacheSize(), metrics);
+    this.negativeCache =
+        new NegativeLookupCache(config.getNegativeCacheSize(), config.getNegativeCacheTtlMillis());
+    this.writeBehind =
+        config.isWriteBehind()
+            ? new WriteBehindQueue(
+                this::write, config.getWriteBehindBatchSize(), config.getWriteBehindQueueSize())
+            : null;
+    this.expiredSessions =
+        new ExpiredSessionQueue(this::deleteIfExpired, EXPIRED_BATCH_SIZE, EXPIRED_QUEUE_CAPACITY);
   }
 
+  /** Returns a view reading through to this cache, see {@link SessionMapView}. */
   @Override
   public ConcurrentMap<String, Val> asMap() {
-    return sessionStream()
-        .map(path -> new SimpleImmutableEntry<>(path.getFileName().toString(), readFile(path)))
-        .filter(entry -> entry.getValue() != null)
-        .collect(
-            Collectors.toConcurrentMap(
-                SimpleImmutableEntry::getKey, SimpleImmutableEntry::getValue));
+    return new SessionMapView(this);
   }
 
   @Override
   public void cleanUp() {
-    foreachSession(
-        path -> {
-          Val val = readFile(path);
-          if (val != null) {
-            Instant expires = Instant.ofEpochMilli(val.getExpiresAt());
-            if (expires.isBefore(TimeMachine.now())) {
-              deleteFile(path);
-            }
-          }
-        });
+    long start = System.nanoTime();
+    long deleted = 0;
+    try {
+      // Sessions found expired by lookups and still queued are deleted first.
+      expiredSessions.drain();
+      deleted = store.deleteExpired(TimeMachine.now(), localCache::invalidate);
+    } finally {
+      metrics.recordCleanup(deleted, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Cleans up what only this master keeps, while another master cleans up the store, see {@link
+   * CleanupLease}.
+   */
+  void cleanUpLocal() {
+    expiredSessions.drain();
+    store.deleteExpiredLocal(TimeMachine.now());
+  }
+
+  /** Deletes the files left in the store by interrupted writes. */
+  void deleteOrphans() {
+    long deleted = store.deleteOrphans();
+    if (deleted > 0) {
+      log.atInfo().log("Deleted %d orphaned temporary files from %s", deleted, store);
+    }
   }
 
+  /**
+   * Returns the session of {@code key}, calling {@code valueLoader} if it is not stored.
+   *
+   * <p>Concurrent calls for the same key, e.g. from the parallel requests of a page, share a single
+   * lookup and load and its result, or its failure. As with Guava caches, a failure of the loader
+   * is thrown as an {@link ExecutionException}, an {@link UncheckedExecutionException} or an
+   * {@link ExecutionError}, and a loader calling this method again for the same key fails with an
+   * {@link IllegalStateException} instead of waiting for itself.
+   */
   @Override
   public Val get(String key, Callable<? extends Val> valueLoader) throws ExecutionException {
+    Load load = new Load();
+    Load leader = loading.putIfAbsent(key, load);
+    if (leader != null) {
+      checkState(leader.thread != Thread.currentThread(), "Recursive load of: %s", key);
+      return leader.await();
+    }
+    try {
+      Val value = getOrLoad(key, valueLoader);
+      load.result.complete(value);
+      return value;
+    } catch (ExecutionException | RuntimeException | Error e) {
+      load.result.completeExceptionally(e);
+      throw e;
+    } finally {
+      loading.remove(key, load);
+    }
+  }
+
+  @Nullable
+  private Val getOrLoad(String key, Callable<? extends Val> valueLoader)
+      throws ExecutionException {
     Val value = getIfPresent(key);
     if (value == null) {
+      long start = System.nanoTime();
       try {
         value = valueLoader.call();
+        metrics.recordLoad(true, System.nanoTime() - start);
+      } catch (RuntimeException e) {
+        metrics.recordLoad(false, System.nanoTime() - start);
+        throw new UncheckedExecutionException(e);
       } catch (Exception e) {
+        metrics.recordLoad(false, System.nanoTime() - start);
         throw new ExecutionException(e);
+      } catch (Error e) {
+        metrics.recordLoad(false, System.nanoTime() - start);
+        throw new ExecutionError(e);
       }
     }
     return value;
@@ -123,11 +218,23 @@ public class FlatFileWebSessionCache implements Cache<String, WebSessionManager.
 
   @Override
   public ImmutableMap<String, Val> getAllPresent(Iterable<?> keys) {
+    ImmutableList<String> distinctKeys =
+        Streams.stream(keys)
+            .filter(String.class::isInstance)
+            .map(String.class::cast)
+            .distinct()
+            .collect(toImmutableList());
+    Val[] vals = new Val[distinctKeys.size()];
+    forEachConcurrently(
+        distinctKeys.size(),
+        i -> {
+          vals[i] = getIfPresent(distinctKeys.get(i));
+          return true;
+        });
     ImmutableMap.Builder<String, Val> mapBuilder = new ImmutableMap.Builder<>();
-    for (Object key : keys) {
-      Val v = getIfPresent(key);
-      if (v != null) {
-        mapBuilder.put((String) key, v);
+    for (int i = 0; i < vals.length; i++) {
+      if (vals[i] != null) {
+        mapBuilder.put(distinctKeys.get(i), vals[i]);
       }
     }
     return mapBuilder.build();
@@ -137,113 +244,481 @@ public class FlatFileWebSessionCache implements Cache<String, WebSessionManager.
   @Nullable
   public Val getIfPresent(Object key) {
     if (key instanceof String) {
-      Path path = websessionsDir.resolve((String) key);
-      return readFile(path);
+      long start = System.nanoTime();
+      Val val = lookup((String) key);
+      metrics.recordGetIfPresent(val != null, System.nanoTime() - start);
+      return val;
     }
     return null;
   }
 
+  /**
+   * Reads the session of {@code key} into memory ahead of its first lookup. Not counted in the
+   * statistics of lookups.
+   *
+   * @return whether the session was found.
+   */
+  boolean preload(String key) {
+    return lookup(key) != null;
+  }
+
+  @Nullable
+  private Val lookup(String k) {
+    if (writeBehind != null) {
+      Val pending = writeBehind.get(k);
+      if (pending != null) {
+        return pending;
+      }
+    }
+    if (negativeCache.isMissing(k)) {
+      metrics.recordNegativeHit();
+      return null;
+    }
+    long stamp = negativeCache.stamp(k);
+    if (watched && !isUnwritten(k)) {
+      Val val = localCache.getIfPresent(k);
+      if (val != null) {
+        return unlessExpired(k, val, stamp);
+      }
+    }
+    Val val;
+    try {
+      val = lookupStored(k, stamp);
+    } catch (StoreUnavailableException e) {
+      // Serve the session kept in memory, if any, until the store answers again.
+      log.atFine().withCause(e).log("Looking up session in memory only");
+      metrics.recordFallbackLookup();
+      val = localCache.getIfPresent(k);
+    }
+    return val != null ? unlessExpired(k, val, stamp) : null;
+  }
+
+  /**
+   * Returns the stored session of {@code key}, from memory if the store has the same version.
+   * {@code stamp} is the {@link NegativeLookupCache#stamp(String)} taken before the lookup.
+   */
+  @Nullable
+  private Val lookupStored(String k, long stamp) {
+    Versioned cached = localCache.peek(k);
+    if (cached != null && cached.version() == UNWRITTEN) {
+      return writeUnwritten(k, cached.val());
+    }
+    Object version = store.version(k);
+    if (version == null) {
+      localCache.invalidate(k);
+      negativeCache.markMissing(k, stamp);
+      return null;
+    }
+    Val val = localCache.getIfUnchanged(k, version);
+    if (val == null) {
+      val = load(k);
+      if (val != null) {
+        localCache.put(k, val, version);
+      }
+    }
+    return val;
+  }
+
+  /**
+   * Returns {@code val} if it has not expired yet. Otherwise the session is treated as missing and
+   * queued for deletion, rather than waiting for the next cleanup.
+   */
+  @Nullable
+  private Val unlessExpired(String key, Val val, long stamp) {
+    if (!isExpired(val.getExpiresAt())) {
+      return val;
+    }
+    localCache.invalidate(key);
+    negativeCache.markMissing(key, stamp);
+    metrics.recordExpiredLookup();
+    expiredSessions.add(key);
+    return null;
+  }
+
+  private static boolean isExpired(long expiresAt) {
+    return expiresAt < TimeMachine.now().toEpochMilli();
+  }
+
+  /**
+   * Deletes the session of {@code key} unless it was put or extended since it was found expired,
+   * e.g. by another master.
+   */
+  private boolean deleteIfExpired(String key) {
+    if (writeBehind != null && writeBehind.get(key) != null) {
+      return false;
+    }
+    try {
+      Long expiresAt = store.expiresAt(key);
+      if (expiresAt == null || !isExpired(expiresAt)) {
+        return false;
+      }
+      delete(key);
+    } catch (StoreUnavailableException e) {
+      // Left to the cleanup.
+      log.atFine().withCause(e).log("Cannot delete expired session");
+      return false;
+    }
+    metrics.recordExpiredDeletions(1);
+    return true;
+  }
+
+  @Nullable
+  private Val load(String key) {
+    long start = System.nanoTime();
+    Val val = store.read(key);
+    metrics.recordLoad(val != null, System.nanoTime() - start);
+    return val;
+  }
+
   @Override
   public void invalidate(Object key) {
     if (key instanceof String) {
-      deleteFile(websessionsDir.resolve((String) key));
+      long start = System.nanoTime();
+      String k = (String) key;
+      if (writeBehind != null) {
+        writeBehind.invalidate(k, () -> delete(k));
+      } else {
+        delete(k);
+      }
+      metrics.recordInvalidate(System.nanoTime() - start);
     }
   }
 
   @Override
   public void invalidateAll() {
-    foreachSession(this::deleteFile);
+    if (writeBehind != null) {
+      writeBehind.invalidateAll();
+    }
+    localCache.invalidateAll();
+    try {
+      store.deleteAll();
+    } catch (StoreUnavailableException e) {
+      log.atWarning().withCause(e).log("Cannot delete all sessions from %s", store);
+    }
   }
 
   @Override
   public void invalidateAll(Iterable<?> keys) {
-    for (Object key : keys) {
-      invalidate(key);
+    List<?> list = Lists.newArrayList(keys);
+    forEachConcurrently(
+        list.size(),
+        i -> {
+          invalidate(list.get(i));
+          return true;
+        });
+  }
+
+  /**
+   * Invalidates all sessions of {@code accountId}, e.g. when the account is deactivated or its
+   * credentials changed.
+   *
+   * @return number of sessions invalidated.
+   */
+  public int invalidateAccount(Account.Id accountId) {
+    // Pending sessions are written first so that the store lists them.
+    flushPendingWrites();
+    ImmutableList<String> keys;
+    try {
+      keys = store.keysOf(accountId);
+    } catch (StoreUnavailableException e) {
+      log.atSevere().withCause(e).log(
+          "Cannot invalidate sessions of account %s in %s", accountId, store);
+      return 0;
     }
+    invalidateAll(keys);
+    return keys.size();
   }
 
   @Override
   public void put(String key, Val value) {
+    putSession(key, value);
+  }
+
+  /** Stores a session, returns whether it was written or queued for writing. */
+  private boolean putSession(String key, Val value) {
+    negativeCache.invalidate(key);
+    if (writeBehind != null) {
+      writeBehind.put(key, value);
+      return true;
+    }
+    return write(key, value);
+  }
+
+  private boolean write(String key, Val value) {
+    long start = System.nanoTime();
     try {
-      Path tempFile = Files.createTempFile(websessionsDir, UUID.randomUUID().toString(), null);
-      try (OutputStream fileStream = Files.newOutputStream(tempFile);
-          ObjectOutputStream objStream = new ObjectOutputStream(fileStream)) {
-        objStream.writeObject(value);
-        Files.move(
-            tempFile,
-            tempFile.resolveSibling(key),
-            StandardCopyOption.REPLACE_EXISTING,
-            StandardCopyOption.ATOMIC_MOVE);
+      Object version = store.write(key, value, localCache.peek(key));
+      if (version != null) {
+        localCache.put(key, value, version);
+      } else {
+        localCache.invalidate(key);
       }
+      // A concurrent lookup may have missed the session before it was stored: invalidating
+      // after the write keeps it from being marked missing.
+      negativeCache.invalidate(key);
+      metrics.recordPut(System.nanoTime() - start);
+      return true;
+    } catch (StoreUnavailableException e) {
+      // Served from memory on this master until the store answers again.
+      localCache.put(key, value, UNWRITTEN);
+      log.atFine().withCause(e).log("Keeping session in memory only");
+      return false;
+    } catch (IOException e) {
+      localCache.invalidate(key);
+      log.atWarning().withCause(e).log("Cannot put session into %s", store);
+      return false;
+    }
+  }
+
+  /**
+   * Writes a session that was kept in memory only because the store was unavailable when it was
+   * put. Throws {@link StoreUnavailableException} if the store is still unavailable.
+   */
+  @Nullable
+  private Val writeUnwritten(String key, Val value) {
+    Object version;
+    try {
+      version = store.write(key, value, null);
     } catch (IOException e) {
-      log.atWarning().withCause(e).log("Cannot put into cache %s", websessionsDir);
+      localCache.invalidate(key);
+      log.atWarning().withCause(e).log("Cannot put session into %s", store);
+      return null;
     }
+    if (version == null) {
+      localCache.invalidate(key);
+      return null;
+    }
+    localCache.put(key, value, version);
+    negativeCache.invalidate(key);
+    log.atFine().log("Stored session kept in memory while %s was unavailable", store);
+    return value;
+  }
+
+  private boolean isUnwritten(String key) {
+    Versioned cached = localCache.peek(key);
+    return cached != null && cached.version() == UNWRITTEN;
   }
 
   @Override
   public void putAll(Map<? extends String, ? extends Val> keys) {
-    for (Entry<? extends String, ? extends Val> e : keys.entrySet()) {
-      put(e.getKey(), e.getValue());
+    List<Entry<? extends String, ? extends Val>> entries = new ArrayList<>(keys.entrySet());
+    int failed =
+        forEachConcurrently(
+            entries.size(), i -> putSession(entries.get(i).getKey(), entries.get(i).getValue()));
+    if (failed > 0) {
+      log.atWarning().log("Cannot put %d of %d sessions into %s", failed, entries.size(), store);
     }
   }
 
+  /**
+   * Runs {@code action} for the indexes from {@code 0} to {@code count - 1}. When a bulk executor
+   * is set, up to {@code bulkThreads} of them run concurrently, the calling thread included, so
+   * that the latencies of the filesystem add up less.
+   *
+   * <p>All indexes are processed even if some fail. The first exception thrown by {@code action} is
+   * rethrown once all are done, with the others suppressed.
+   *
+   * @param action returns whether it succeeded for the given index.
+   * @return number of indexes for which {@code action} returned {@code false}.
+   */
+  private int forEachConcurrently(int count, IntPredicate action) {
+    AtomicInteger next = new AtomicInteger();
+    AtomicInteger failed = new AtomicInteger();
+    Queue<RuntimeException> errors = new ConcurrentLinkedQueue<>();
+    Runnable worker =
+        () -> {
+          for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+            try {
+              if (!action.test(i)) {
+                failed.incrementAndGet();
+              }
+            } catch (RuntimeException e) {
+              errors.add(e);
+            }
+          }
+        };
+    Executor executor = bulkExecutor;
+    List<CompletableFuture<Void>> helpers = new ArrayList<>();
+    if (executor != null) {
+      for (int i = 1; i < Math.min(bulkThreads, count); i++) {
+        try {
+          helpers.add(CompletableFuture.runAsync(worker, executor));
+        } catch (RejectedExecutionException e) {
+          // Shutting down, the remaining indexes are processed by this thread.
+          break;
+        }
+      }
+    }
+    worker.run();
+    helpers.forEach(CompletableFuture::join);
+    RuntimeException error = errors.poll();
+    if (error != null) {
+      errors.forEach(error::addSuppressed);
+      throw error;
+    }
+    return failed.get();
+  }
+
   @Override
   public long size() {
-    return sessionStream().count();
+    try {
+      long size = store.count();
+      lastSize = size;
+      return size;
+    } catch (StoreUnavailableException e) {
+      log.atWarning().withCause(e).log("Cannot count sessions in %s", store);
+      return lastSize;
+    }
   }
 
-  @Override
-  public CacheStats stats() {
-    log.atWarning().log("stats() unimplemented");
-    return null;
+  /**
+   * Lists the keys of the sessions put but not written yet, then those of the stored sessions. Only
+   * the former are listed while the store is unavailable.
+   */
+  Stream<String> keys() {
+    Set<String> pending = writeBehind != null ? writeBehind.keys() : ImmutableSet.of();
+    Stream<String> stored;
+    try {
+      stored = store.keys().filter(key -> !pending.contains(key));
+    } catch (StoreUnavailableException e) {
+      log.atWarning().withCause(e).log("Cannot list sessions in %s", store);
+      stored = Stream.empty();
+    }
+    return Stream.concat(pending.stream(), stored);
   }
 
-  private Val readFile(Path path) {
-    if (path.toFile().exists()) {
-      try (InputStream fileStream = Files.newInputStream(path);
-          ObjectInputStream objStream = new ObjectInputStream(fileStream)) {
-        return (Val) objStream.readObject();
-      } catch (ClassNotFoundException e) {
-        log.atWarning().log(
-            "Entry %s in cache %s has an incompatible class and can't be"
-                + " deserialized. Invalidating entry.",
-            path, websessionsDir);
-        log.atFine().withCause(e).log("Exception message %s", e.getMessage());
-        invalidate(path.getFileName().toString());
-      } catch (IOException e) {
-        log.atWarning().withCause(e).log("Cannot read cache %s", path);
+  /**
+   * Looks up the session of {@code key} like {@link #getIfPresent}, but reads stored sessions
+   * without keeping them in memory. {@code null} if there is none, it expired or the store is
+   * unavailable.
+   */
+  @Nullable
+  Val readUncached(String key) {
+    if (writeBehind != null) {
+      Val pending = writeBehind.get(key);
+      if (pending != null) {
+        return pending;
       }
     }
-    return null;
+    long stamp = negativeCache.stamp(key);
+    Val val;
+    try {
+      val = store.read(key);
+    } catch (StoreUnavailableException e) {
+      log.atFine().withCause(e).log("Cannot read session from %s", store);
+      return null;
+    }
+    return val != null ? unlessExpired(key, val, stamp) : null;
   }
 
-  private void deleteFile(Path path) {
-    try {
-      Files.deleteIfExists(path);
-    } catch (IOException e) {
-      log.atSevere().withCause(e).log("Error trying to delete %s from %s", path, websessionsDir);
+  @Override
+  public CacheStats stats() {
+    return metrics.stats();
+  }
+
+  /** Runs the concurrent parts of bulk operations on {@code executor}, sequentially if null. */
+  void setBulkExecutor(@Nullable Executor executor) {
+    this.bulkExecutor = executor;
+  }
+
+  /** Deletes the sessions found expired by lookups on {@code executor}, {@code null} to stop. */
+  void setExpiryExecutor(@Nullable Executor executor) {
+    expiredSessions.setExecutor(executor);
+  }
+
+  /**
+   * Deletes the sessions found expired by lookups that are still queued.
+   *
+   * @return number of sessions deleted.
+   */
+  int deleteExpiredSessions() {
+    return expiredSessions.drain();
+  }
+
+  /** Runs write-behind flushes triggered by the number of pending sessions on {@code executor}. */
+  void setWriteBehindExecutor(@Nullable Executor executor) {
+    if (writeBehind != null) {
+      writeBehind.setExecutor(executor);
     }
   }
 
-  private void foreachSession(Consumer<Path> sessionPath) {
-    try (DirectoryStream<Path> dirStream = sessionDirectoryStream()) {
-      dirStream.forEach(sessionPath);
-    } catch (IOException e) {
-      log.atSevere().withCause(e).log("Cannot list files in cache %s", websessionsDir);
+  /**
+   * Writes the sessions put in write-behind mode that are not written yet.
+   *
+   * @return number of sessions written.
+   */
+  int flushPendingWrites() {
+    return writeBehind != null ? writeBehind.flush() : 0;
+  }
+
+  /**
+   * Serves sessions kept in memory without checking that the store still has the same version.
+   * Only enabled while changes of the store are reported through {@link #onStoreChange(String)}
+   * and {@link #onStoreChangesLost()}.
+   */
+  void setWatched(boolean watched) {
+    this.watched = watched;
+  }
+
+  /**
+   * Evicts what is known on this master about the session of {@code key} if it was modified in the
+   * store, e.g. by another master. Changes made by this master are recognized and keep the session
+   * in memory.
+   */
+  void onStoreChange(String key) {
+    Object version = store.version(key);
+    Versioned cached = localCache.peek(key);
+    // Sessions not written yet replace what other masters stored once they are written.
+    if (cached != null && cached.version() != UNWRITTEN && !cached.version().equals(version)) {
+      localCache.invalidate(key);
+    }
+    if (version != null) {
+      negativeCache.invalidate(key);
     }
   }
 
-  private Stream<Path> sessionStream() {
-    try {
-      return StreamSupport.stream(
-          sessionDirectoryStream().spliterator(), false /* single-threaded */);
-    } catch (IOException e) {
-      log.atSevere().withCause(e).log("Cannot traverse files in cache %s", websessionsDir);
-      return Stream.empty();
+  /** Evicts all sessions kept in memory after changes of the store could not be tracked. */
+  void onStoreChangesLost() {
+    localCache.invalidateAll();
+    negativeCache.invalidateAll();
+  }
+
+  /** Keys of the sessions known on this master, stored or missing, whose changes matter. */
+  Iterable<String> watchedKeys() {
+    return Iterables.concat(localCache.keys(), negativeCache.keys());
+  }
+
+  /** A load in progress in {@link #get(String, Callable)}, shared by the calls for its key. */
+  private static final class Load {
+    final Thread thread = Thread.currentThread();
+    final CompletableFuture<Val> result = new CompletableFuture<>();
+
+    /** Waits for the result of the load, rethrowing its failure in the calling thread. */
+    Val await() throws ExecutionException {
+      try {
+        return Uninterruptibles.getUninterruptibly(result);
+      } catch (ExecutionException e) {
+        Throwable failure = e.getCause();
+        if (failure instanceof ExecutionException) {
+          throw new ExecutionException(failure.getCause());
+        } else if (failure instanceof ExecutionError) {
+          throw new ExecutionError((Error) failure.getCause());
+        } else if (failure instanceof UncheckedExecutionException) {
+          throw new UncheckedExecutionException(failure.getCause());
+        } else if (failure instanceof Error) {
+          throw new ExecutionError((Error) failure);
+        }
+        throw new UncheckedExecutionException(failure);
+      }
     }
   }
 
-  private DirectoryStream<Path> sessionDirectoryStream() throws IOException {
-    return Files.newDirectoryStream(websessionsDir);
+  private void delete(String key) {
+    localCache.invalidate(key);
+    try {
+      store.delete(key);
+    } catch (StoreUnavailableException e) {
+      log.atWarning().withCause(e).log("Cannot delete session from %s", store);
+    }
   }
 }
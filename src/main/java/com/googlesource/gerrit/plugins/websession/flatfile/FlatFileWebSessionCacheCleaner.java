@@ -24,6 +24,7 @@ import com.google.gerrit.server.git.WorkQueue;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 
 @Singleton
@@ -32,28 +33,56 @@ class FlatFileWebSessionCacheCleaner implements LifecycleListener {
   private final WorkQueue queue;
   private final Provider<CleanupTask> cleanupTaskProvider;
   private final long cleanupIntervalMillis;
+  private ScheduledExecutorService cleanupExecutor;
   private ScheduledFuture<?> scheduledCleanupTask;
 
   static class CleanupTask implements Runnable {
     private static final FluentLogger log = FluentLogger.forEnclosingClass();
     private final FlatFileWebSessionCache flatFileWebSessionCache;
+    private final CleanupLease lease;
+    private final SessionScanner scanner;
     private final String pluginName;
 
     @Inject
-    CleanupTask(FlatFileWebSessionCache flatFileWebSessionCache, @PluginName String pluginName) {
+    CleanupTask(
+        FlatFileWebSessionCache flatFileWebSessionCache,
+        CleanupLease lease,
+        SessionScanner scanner,
+        @PluginName String pluginName) {
       this.flatFileWebSessionCache = flatFileWebSessionCache;
+      this.lease = lease;
+      this.scanner = scanner;
       this.pluginName = pluginName;
     }
 
     @Override
     public void run() {
+      if (!lease.tryAcquire()) {
+        log.atInfo().log("Expired file based websessions are cleaned up by another master");
+        try {
+          flatFileWebSessionCache.cleanUpLocal();
+        } catch (Exception e) {
+          log.atSevere().withCause(e).log("Exception during cleaning local sessions");
+        }
+        return;
+      }
       log.atInfo().log("Cleaning up expired file based websessions...");
+      boolean completed = false;
       try {
-        flatFileWebSessionCache.cleanUp();
+        // Stops between batches if another master took the lease over.
+        scanner.guarded(
+            lease::renew,
+            () -> {
+              flatFileWebSessionCache.cleanUp();
+              flatFileWebSessionCache.deleteOrphans();
+            });
+        completed = true;
       } catch (Exception e) {
         // log and do not prevent subsequent scheduled tasks from running
         // see https://docs.oracle.com/javase/7/docs/api/java/util/concurrent/ScheduledThreadPoolExecutor.html#scheduleAtFixedRate(java.lang.Runnable,%20long,%20long,%20java.util.concurrent.TimeUnit)
         log.atSevere().withCause(e).log("Exception during cleaning sessions");
+      } finally {
+        lease.release(completed);
       }
       log.atInfo().log("Cleaning up expired file based websessions...Done");
     }
@@ -76,14 +105,10 @@ class FlatFileWebSessionCacheCleaner implements LifecycleListener {
 
   @Override
   public void start() {
+    cleanupExecutor = queue.createQueue(1, "WebSessionCleanup");
     scheduledCleanupTask =
-        queue
-            .getDefaultQueue()
-            .scheduleAtFixedRate(
-                cleanupTaskProvider.get(),
-                SECONDS.toMillis(1),
-                cleanupIntervalMillis,
-                MILLISECONDS);
+        cleanupExecutor.scheduleAtFixedRate(
+            cleanupTaskProvider.get(), SECONDS.toMillis(1), cleanupIntervalMillis, MILLISECONDS);
   }
 
   @Override
@@ -92,5 +117,9 @@ class FlatFileWebSessionCacheCleaner implements LifecycleListener {
       scheduledCleanupTask.cancel(true);
       scheduledCleanupTask = null;
     }
+    if (cleanupExecutor != null) {
+      cleanupExecutor.shutdownNow();
+      cleanupExecutor = null;
+    }
   }
 }
@@ -0,0 +1,275 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.httpd.WebSessionManager.Val;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Protects request threads from a stalled filesystem beneath another store.
+ *
+ * <p>Operations on a single session run on I/O threads, at most {@code ioConcurrency} at once, and
+ * the caller gives up after {@code ioTimeout}, including the time spent waiting for a free thread.
+ * A thread blocked by the filesystem stays busy until the filesystem answers, so a stall cannot
+ * take more than {@code ioConcurrency} threads. After {@code breakerThreshold} consecutive timeouts
+ * or errors, all operations fail fast for {@code breakerOpenTime}, then a single operation probes
+ * whether the store answers again.
+ *
+ * <p>Operations that did not complete throw {@link StoreUnavailableException}; the cache then
+ * serves the sessions it keeps in memory. Counting the sessions and listing those of an account run
+ * like operations on a single session, with a timeout of {@code ioBulkTimeout} instead. The other
+ * bulk operations run on the calling thread without a timeout, e.g. as part of the cleanup, and
+ * fail fast while the breaker is not closed.
+ */
+class GuardedSessionStore implements SessionStore {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  @FunctionalInterface
+  private interface Operation<T> {
+    T run() throws IOException;
+  }
+
+  private final SessionStore delegate;
+  private final WebSessionMetrics metrics;
+  private final Semaphore permits;
+  private final long timeoutNanos;
+  private final long bulkTimeoutNanos;
+  private final long openMillis;
+  private final CircuitBreaker breaker;
+  private final Executor ioExecutor;
+
+  /**
+   * @param ioExecutor runs the operations on single sessions, with at least {@code ioConcurrency}
+   *     threads, see {@link StoreIoExecutor}.
+   */
+  GuardedSessionStore(
+      SessionStore delegate,
+      Configuration config,
+      WebSessionMetrics metrics,
+      Executor ioExecutor) {
+    this.delegate = delegate;
+    this.metrics = metrics;
+    this.permits = new Semaphore(config.getIoConcurrency());
+    this.timeoutNanos = MILLISECONDS.toNanos(config.getIoTimeoutMillis());
+    this.bulkTimeoutNanos = MILLISECONDS.toNanos(config.getIoBulkTimeoutMillis());
+    this.openMillis = config.getBreakerOpenTimeMillis();
+    this.breaker =
+        new CircuitBreaker(config.getBreakerThreshold(), MILLISECONDS.toNanos(openMillis));
+    this.ioExecutor = ioExecutor;
+    metrics.registerBreakerState(() -> breaker.state().ordinal());
+  }
+
+  @Override
+  public void start() {
+    delegate.start();
+  }
+
+  @Override
+  @Nullable
+  public Object version(String key) {
+    return callUnchecked("version", timeoutNanos, () -> delegate.version(key));
+  }
+
+  @Override
+  @Nullable
+  public Val read(String key) {
+    return callUnchecked("read", timeoutNanos, () -> delegate.read(key));
+  }
+
+  @Override
+  @Nullable
+  public Object write(String key, Val val, @Nullable Versioned previous) throws IOException {
+    return call("write", timeoutNanos, () -> delegate.write(key, val, previous));
+  }
+
+  @Override
+  public void delete(String key) {
+    callUnchecked(
+        "delete",
+        timeoutNanos,
+        () -> {
+          delegate.delete(key);
+          return null;
+        });
+  }
+
+  @Override
+  @Nullable
+  public Long expiresAt(String key) {
+    return callUnchecked("expiresAt", timeoutNanos, () -> delegate.expiresAt(key));
+  }
+
+  @Override
+  public void deleteAll() {
+    checkClosed("deleteAll");
+    delegate.deleteAll();
+  }
+
+  @Override
+  public Stream<String> keys() {
+    checkClosed("keys");
+    return delegate.keys();
+  }
+
+  @Override
+  public long count() {
+    return callUnchecked("count", bulkTimeoutNanos, delegate::count);
+  }
+
+  @Override
+  public ImmutableList<String> keysOf(Account.Id accountId) {
+    return callUnchecked("keysOf", bulkTimeoutNanos, () -> delegate.keysOf(accountId));
+  }
+
+  @Override
+  public long deleteOrphans() {
+    checkClosed("deleteOrphans");
+    return delegate.deleteOrphans();
+  }
+
+  @Override
+  public long deleteExpired(Instant now, Consumer<String> deleted) {
+    checkClosed("deleteExpired");
+    return delegate.deleteExpired(now, deleted);
+  }
+
+  @Override
+  public long deleteExpiredLocal(Instant now) {
+    return delegate.deleteExpiredLocal(now);
+  }
+
+  @Override
+  public String toString() {
+    return delegate.toString();
+  }
+
+  /** Current state of the breaker, see {@link CircuitBreaker}. */
+  CircuitBreaker.State breakerState() {
+    return breaker.state();
+  }
+
+  private void checkClosed(String operation) {
+    if (breaker.state() != CircuitBreaker.State.CLOSED) {
+      metrics.recordStoreRejected();
+      throw unavailable(operation, "is failing", null);
+    }
+  }
+
+  private <T> T callUnchecked(String operation, long timeout, Supplier<T> supplier) {
+    try {
+      return call(operation, timeout, supplier::get);
+    } catch (IOException e) {
+      // Only thrown by write.
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Runs {@code op} on an I/O thread, giving up after {@code timeout} nanoseconds. */
+  private <T> T call(String operation, long timeout, Operation<T> op) throws IOException {
+    if (!breaker.allowCall()) {
+      metrics.recordStoreRejected();
+      throw unavailable(operation, "is failing", null);
+    }
+    long deadline = System.nanoTime() + timeout;
+    FutureTask<T> future;
+    try {
+      if (!permits.tryAcquire(timeout, NANOSECONDS)) {
+        onFailure();
+        metrics.recordStoreTimeout();
+        throw unavailable(operation, "has too many operations in progress", null);
+      }
+      future =
+          new FutureTask<>(
+              () -> {
+                try {
+                  return op.run();
+                } finally {
+                  permits.release();
+                }
+              });
+      try {
+        ioExecutor.execute(future);
+      } catch (RejectedExecutionException e) {
+        // The plugin is stopping, the store is not failing.
+        permits.release();
+        throw unavailable(operation, "is stopped", e);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      onFailure();
+      throw unavailable(operation, "was interrupted", e);
+    }
+    try {
+      T result = future.get(deadline - System.nanoTime(), NANOSECONDS);
+      onSuccess();
+      return result;
+    } catch (TimeoutException e) {
+      // The operation keeps its thread until the filesystem answers.
+      onFailure();
+      metrics.recordStoreTimeout();
+      throw unavailable(operation, "timed out", null);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      onFailure();
+      throw unavailable(operation, "was interrupted", e);
+    } catch (ExecutionException e) {
+      onFailure();
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private void onSuccess() {
+    if (breaker.onSuccess()) {
+      log.atInfo().log("Store %s answers again", delegate);
+    }
+  }
+
+  private void onFailure() {
+    if (breaker.onFailure()) {
+      metrics.recordBreakerTrip();
+      log.atWarning().log(
+          "Store %s is failing, its operations fail fast for %d ms", delegate, openMillis);
+    }
+  }
+
+  private StoreUnavailableException unavailable(
+      String operation, String reason, @Nullable Throwable cause) {
+    String message = String.format("%s of %s %s", operation, delegate, reason);
+    return cause != null
+        ? new StoreUnavailableException(message, cause)
+        : new StoreUnavailableException(message);
+  }
+}
@@ -0,0 +1,56 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.extensions.annotations.CapabilityScope;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.sshd.CommandMetaData;
+import com.google.gerrit.sshd.SshCommand;
+import com.google.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import org.kohsuke.args4j.Argument;
+
+@RequiresCapability(value = GlobalCapability.ADMINISTRATE_SERVER, scope = CapabilityScope.CORE)
+@CommandMetaData(
+    name = "invalidate-account",
+    description = "Invalidates all web sessions of accounts")
+final class InvalidateAccountCommand extends SshCommand {
+  @Argument(
+      index = 0,
+      required = true,
+      multiValued = true,
+      metaVar = "ACCOUNT_ID",
+      usage = "numeric id of the account whose sessions are invalidated")
+  private List<Integer> accountIds = new ArrayList<>();
+
+  private final FlatFileWebSessionCache cache;
+
+  @Inject
+  InvalidateAccountCommand(FlatFileWebSessionCache cache) {
+    this.cache = cache;
+  }
+
+  @Override
+  protected void run() {
+    for (int accountId : accountIds) {
+      int invalidated = cache.invalidateAccount(Account.id(accountId));
+      stdout.println(
+          String.format("Invalidated %d sessions of account %d", invalidated, accountId));
+    }
+  }
+}
@@ -0,0 +1,105 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.httpd.WebSessionManager.Val;
+import com.googlesource.gerrit.plugins.websession.flatfile.SessionStore.Versioned;
+import java.util.Set;
+
+/**
+ * Bounded heap tier in front of the {@link SessionStore}.
+ *
+ * <p>Entries remember the version of the store they were read from, e.g. the file key,
+ * modification time and size of a session file. A lookup only returns the cached value while the
+ * store still has the same version, so sessions rewritten or deleted by other masters sharing the
+ * store are never served stale. Hits and misses are reported by {@link WebSessionMetrics}.
+ */
+class LocalWebSessionCache {
+
+  @Nullable private final Cache<String, Versioned> entries;
+  private final WebSessionMetrics metrics;
+
+  LocalWebSessionCache(int maximumSize, WebSessionMetrics metrics) {
+    entries = maximumSize > 0 ? CacheBuilder.newBuilder().maximumSize(maximumSize).build() : null;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Returns the cached value for {@code key} if it was read from or written to the given version
+   * of the store, {@code null} otherwise.
+   */
+  @Nullable
+  Val getIfUnchanged(String key, Object version) {
+    if (entries != null) {
+      Versioned entry = entries.getIfPresent(key);
+      if (entry != null) {
+        if (entry.version().equals(version)) {
+          metrics.recordMemoryLookup(true);
+          return entry.val();
+        }
+        entries.invalidate(key);
+      }
+    }
+    metrics.recordMemoryLookup(false);
+    return null;
+  }
+
+  /**
+   * Returns the cached value for {@code key} without checking it is current, counting a hit if
+   * there is one. Misses are counted by the following {@link #getIfUnchanged}.
+   */
+  @Nullable
+  Val getIfPresent(String key) {
+    Versioned entry = peek(key);
+    if (entry != null) {
+      metrics.recordMemoryLookup(true);
+      return entry.val();
+    }
+    return null;
+  }
+
+  /** Returns the cached value for {@code key} and its version, without checking it is current. */
+  @Nullable
+  Versioned peek(String key) {
+    return entries != null ? entries.getIfPresent(key) : null;
+  }
+
+  void put(String key, Val val, Object version) {
+    if (entries != null) {
+      entries.put(key, new Versioned(val, version));
+    }
+  }
+
+  void invalidate(String key) {
+    if (entries != null) {
+      entries.invalidate(key);
+    }
+  }
+
+  void invalidateAll() {
+    if (entries != null) {
+      entries.invalidateAll();
+    }
+  }
+
+  /** Returns a snapshot of the cached keys. */
+  Set<String> keys() {
+    return entries != null ? ImmutableSet.copyOf(entries.asMap().keySet()) : ImmutableSet.of();
+  }
+}
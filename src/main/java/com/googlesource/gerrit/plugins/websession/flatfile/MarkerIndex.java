@@ -0,0 +1,118 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import com.google.common.flogger.FluentLogger;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+/**
+ * Index of sessions kept in a reserved subdirectory of the websessions directory, in which each
+ * indexed session has an empty marker file named after its key in the directory of its group.
+ *
+ * <p>The index directory is created before existing sessions are indexed by a scan, so that the
+ * sessions put meanwhile are indexed as well. Once the scan is complete, the index is marked
+ * initialized. Markers are created and deleted without locking, so all operations tolerate
+ * concurrent changes by other masters.
+ */
+abstract class MarkerIndex {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  private static final String INITIALIZED = ".initialized";
+
+  final Path dir;
+  private final String name;
+
+  /**
+   * @param dir directory of the index.
+   * @param name of the index in log messages.
+   */
+  MarkerIndex(Path dir, String name) {
+    this.dir = dir;
+    this.name = name;
+  }
+
+  /** Whether the index was built, i.e. whether all sessions have a marker. */
+  boolean isInitialized() {
+    return Files.exists(dir.resolve(INITIALIZED));
+  }
+
+  /** Starts indexing the sessions that are put, before existing sessions are added. */
+  void create() throws IOException {
+    Files.createDirectories(dir);
+  }
+
+  /** Records that all existing sessions were added. */
+  void markInitialized() throws IOException {
+    try {
+      Files.createFile(dir.resolve(INITIALIZED));
+    } catch (FileAlreadyExistsException e) {
+      // Initialized concurrently by another master.
+    }
+  }
+
+  /** Directory of the markers of {@code group}. */
+  Path groupDir(String group) {
+    return dir.resolve(group);
+  }
+
+  /** Adds the marker of {@code key} to {@code group}, creating the group if needed. */
+  void addMarker(String group, String key) {
+    Path groupDir = groupDir(group);
+    try {
+      createMarker(groupDir, key);
+    } catch (NoSuchFileException e) {
+      try {
+        Files.createDirectory(groupDir);
+      } catch (FileAlreadyExistsException e2) {
+        // Created concurrently.
+      } catch (NoSuchFileException e2) {
+        // Not created yet, the session will be added by the initial scan.
+        return;
+      } catch (IOException e2) {
+        log.atWarning().withCause(e2).log("Cannot create %s %s", name, groupDir);
+        return;
+      }
+      try {
+        createMarker(groupDir, key);
+      } catch (IOException e2) {
+        log.atWarning().withCause(e2).log("Cannot add %s to %s %s", key, name, groupDir);
+      }
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot add %s to %s %s", key, name, groupDir);
+    }
+  }
+
+  /** Removes the marker of {@code key} from {@code group}, keeping the directory of the group. */
+  void removeMarker(String group, String key) {
+    Path marker = groupDir(group).resolve(key);
+    try {
+      Files.deleteIfExists(marker);
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot remove %s from %s", marker, name);
+    }
+  }
+
+  private static void createMarker(Path groupDir, String key) throws IOException {
+    try {
+      Files.createFile(groupDir.resolve(key));
+    } catch (FileAlreadyExistsException e) {
+      // Already indexed, e.g. by another master.
+    }
+  }
+}
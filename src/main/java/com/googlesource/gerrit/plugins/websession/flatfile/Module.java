@@ -19,11 +19,14 @@ import static java.util.concurrent.TimeUnit.HOURS;
 import com.google.common.base.Strings;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.lifecycle.LifecycleModule;
+import com.google.gerrit.metrics.DisabledMetricMaker;
 import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.gerrit.server.config.SitePaths;
+import com.google.inject.Provider;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
@@ -33,7 +36,17 @@ public class Module extends LifecycleModule {
 
   @Override
   protected void configure() {
+    // Started first and stopped last, the other listeners use the store.
+    listener().to(StoreIoExecutor.class);
+    listener().to(SessionStoreStarter.class);
     listener().to(FlatFileWebSessionCacheCleaner.class);
+    listener().to(SessionLayoutMigration.class);
+    listener().to(SessionScanner.class);
+    listener().to(WriteBehindFlusher.class);
+    listener().to(ExpiredSessionReaper.class);
+    listener().to(SessionChangeWatcher.class);
+    listener().to(SessionWarmer.class);
+    listener().to(BulkExecutor.class);
   }
 
   @Provides
@@ -45,6 +58,47 @@ public class Module extends LifecycleModule {
             .getString("directory", site.site_path + "/websessions"));
   }
 
+  @Provides
+  @Singleton
+  SessionStore getSessionStore(
+      Configuration config,
+      Provider<FlatFileSessionStore> flatFileStore,
+      Provider<SegmentSessionStore> segmentStore,
+      SessionScanner scanner,
+      WebSessionMetrics metrics,
+      StoreIoExecutor ioExecutor)
+      throws IOException {
+    SessionStore store;
+    switch (config.getStore()) {
+      case SEGMENT:
+        store = segmentStore.get();
+        break;
+      case FLAT:
+      default:
+        store = flatFileStore.get();
+        break;
+    }
+    if (config.getIoConcurrency() > 0) {
+      store = new GuardedSessionStore(store, config, metrics, ioExecutor);
+    }
+    Path localDirectory = config.getLocalDirectory();
+    if (localDirectory != null) {
+      store =
+          new TwoTierSessionStore(
+              store,
+              new FlatFileSessionStore(
+                  localDirectory,
+                  config.isCompactFormat(),
+                  config.getShardDepth(),
+                  config.getShardWidth(),
+                  scanner,
+                  // Keeps the metrics of the shared store apart.
+                  new WebSessionMetrics(new DisabledMetricMaker())),
+              config);
+    }
+    return store;
+  }
+
   @Provides
   @Singleton
   @CleanupInterval
@@ -0,0 +1,94 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.common.Nullable;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keys recently looked up without finding a session file.
+ *
+ * <p>Repeated lookups of unknown keys, e.g. expired or forged cookies, are answered without I/O.
+ * Keys put on this master are removed right away; keys put by other masters sharing the directory
+ * are only found once their entry expires, so the time to live bounds how long such a session can
+ * be missed.
+ *
+ * <p>A lookup takes a {@link #stamp(String)} of its key before checking the store, and only marks
+ * the key missing if no session was put for a key of the same stripe meanwhile, so a put racing
+ * with the lookup is never hidden.
+ */
+class NegativeLookupCache {
+  private static final int STRIPES = 64;
+
+  @Nullable private final Cache<String, Boolean> missing;
+  private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+
+  NegativeLookupCache(int maximumSize, long ttlMillis) {
+    missing =
+        maximumSize > 0 && ttlMillis > 0
+            ? CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttlMillis, MILLISECONDS)
+                .build()
+            : null;
+  }
+
+  boolean isMissing(String key) {
+    return missing != null && missing.getIfPresent(key) != null;
+  }
+
+  /** Returns the stamp of {@code key} to pass to {@link #markMissing(String, long)}. */
+  long stamp(String key) {
+    return stamps.get(stripe(key));
+  }
+
+  /** Marks {@code key} missing unless it was invalidated since {@code stamp} was taken. */
+  void markMissing(String key, long stamp) {
+    if (missing != null) {
+      missing.put(key, Boolean.TRUE);
+      if (stamps.get(stripe(key)) != stamp) {
+        missing.invalidate(key);
+      }
+    }
+  }
+
+  void invalidate(String key) {
+    if (missing != null) {
+      stamps.incrementAndGet(stripe(key));
+      missing.invalidate(key);
+    }
+  }
+
+  void invalidateAll() {
+    if (missing != null) {
+      missing.invalidateAll();
+    }
+  }
+
+  private static int stripe(String key) {
+    return (key.hashCode() & Integer.MAX_VALUE) % STRIPES;
+  }
+
+  /** Returns a snapshot of the keys remembered as missing. */
+  Set<String> keys() {
+    return missing != null ? ImmutableSet.copyOf(missing.asMap().keySet()) : ImmutableSet.of();
+  }
+}
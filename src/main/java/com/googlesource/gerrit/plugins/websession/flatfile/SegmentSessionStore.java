@@ -0,0 +1,495 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.httpd.WebSessionManager.Val;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.websession.flatfile.FlatFileWebSessionCache.TimeMachine;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Appends sessions to memory-mapped segment files and keeps the location of each in memory.
+ *
+ * <p>Each put appends a record with the encoded session, each delete a tombstone. The index of
+ * live records is rebuilt by replaying the segments when the store is created, so lookups and
+ * cleanup never touch the disk and reads copy the session from the mapped segment. Records of
+ * sessions that were overwritten, deleted or expired are dropped by the compaction run as part of
+ * the cleanup.
+ *
+ * <p>Segments are written by this process only: the directory must not be shared by several
+ * masters.
+ */
+@Singleton
+class SegmentSessionStore implements SessionStore {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  static final String SEGMENT_DIR = ".segments";
+  static final String SEGMENT_SUFFIX = ".segment";
+
+  /** Record length, CRC32 of the rest of the record, type and expiry, before the key. */
+  private static final int RECORD_HEADER_SIZE = 4 + 4 + 1 + 8;
+
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+
+  /** Sealed segments with less than this share of live records are compacted. */
+  private static final double COMPACTION_THRESHOLD = 0.5;
+
+  private static class Segment {
+    final long id;
+    final Path path;
+    final MappedByteBuffer buffer;
+    final AtomicLong liveBytes = new AtomicLong();
+    volatile int writeOffset;
+
+    Segment(long id, Path path, MappedByteBuffer buffer) {
+      this.id = id;
+      this.path = path;
+      this.buffer = buffer;
+    }
+  }
+
+  /** Location of the record of a live session, used as its version. */
+  private static class Location {
+    final Segment segment;
+    final int offset;
+    final int length;
+    final long expiresAt;
+
+    Location(Segment segment, int offset, int length, long expiresAt) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+      this.expiresAt = expiresAt;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Location)) {
+        return false;
+      }
+      Location o = (Location) other;
+      return segment == o.segment && offset == o.offset;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(segment.id) * 31 + offset;
+    }
+  }
+
+  /** Record read back from a segment. */
+  private static class Record {
+    final byte type;
+    final long expiresAt;
+    final String key;
+    final int offset;
+    final int length;
+
+    Record(byte type, long expiresAt, String key, int offset, int length) {
+      this.type = type;
+      this.expiresAt = expiresAt;
+      this.key = key;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private final Path segmentDir;
+  private final int segmentSize;
+  private final SessionCodec codec;
+  private final WebSessionMetrics metrics;
+  private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+  private final Map<String, Location> index = new ConcurrentHashMap<>();
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private volatile Segment active;
+
+  @Inject
+  SegmentSessionStore(
+      @WebSessionDir Path websessionsDir, Configuration config, WebSessionMetrics metrics)
+      throws IOException {
+    this.segmentDir = websessionsDir.resolve(SEGMENT_DIR);
+    this.segmentSize = config.getSegmentSize();
+    // Records are only decoded by this store, the serialized format is
+    // never needed to share them with older plugin versions.
+    this.codec = new SessionCodec(true);
+    this.metrics = metrics;
+    Files.createDirectories(segmentDir);
+    open();
+  }
+
+  @Override
+  @Nullable
+  public Object version(String key) {
+    return index.get(key);
+  }
+
+  @Override
+  @Nullable
+  public Val read(String key) {
+    Location location = index.get(key);
+    if (location == null) {
+      return null;
+    }
+    ByteBuffer buffer = location.segment.buffer.duplicate();
+    buffer.position(location.offset + RECORD_HEADER_SIZE);
+    byte[] keyBytes = new byte[buffer.getShort()];
+    buffer.position(buffer.position() + keyBytes.length);
+    byte[] data = new byte[location.length - (buffer.position() - location.offset)];
+    buffer.get(data);
+    try {
+      metrics.recordRead(data.length);
+      return codec.decode(data);
+    } catch (IOException | ClassNotFoundException e) {
+      metrics.recordReadFailure();
+      log.atWarning().withCause(e).log(
+          "Cannot read session at offset %d of %s", location.offset, location.segment.path);
+      return null;
+    }
+  }
+
+  @Override
+  @Nullable
+  public Object write(String key, Val val, @Nullable Versioned previous) throws IOException {
+    byte[] data = codec.encode(val);
+    if (previous != null
+        && previous.version().equals(index.get(key))
+        && Arrays.equals(codec.encode(previous.val()), data)) {
+      metrics.recordPutUnchanged();
+      return previous.version();
+    }
+    byte[] record = encodeRecord(PUT, val.getExpiresAt(), key, data);
+    writeLock.lock();
+    try {
+      Location location = append(record, val.getExpiresAt());
+      release(index.put(key, location));
+      metrics.recordWrite(record.length);
+      return location;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public void delete(String key) {
+    writeLock.lock();
+    try {
+      Location location = index.remove(key);
+      if (location != null) {
+        release(location);
+        append(encodeRecord(DELETE, 0, key, new byte[0]), 0);
+      }
+    } catch (IOException e) {
+      log.atSevere().withCause(e).log("Cannot delete session %s from %s", key, segmentDir);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public void deleteAll() {
+    writeLock.lock();
+    try {
+      index.clear();
+      long nextId = active.id + 1;
+      for (Segment segment : segments.values()) {
+        deleteSegment(segment);
+      }
+      active = createSegment(nextId);
+    } catch (IOException e) {
+      log.atSevere().withCause(e).log("Cannot delete segments of %s", segmentDir);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public Stream<String> keys() {
+    return index.keySet().stream();
+  }
+
+  @Override
+  public long count() {
+    return index.size();
+  }
+
+  @Override
+  @Nullable
+  public Long expiresAt(String key) {
+    Location location = index.get(key);
+    return location != null ? location.expiresAt : null;
+  }
+
+  @Override
+  public long deleteExpired(Instant now, Consumer<String> deleted) {
+    long count = 0;
+    long nowMillis = now.toEpochMilli();
+    for (Map.Entry<String, Location> e : index.entrySet()) {
+      Location location = e.getValue();
+      // Expired records need no tombstone: replay skips them as well.
+      if (location.expiresAt < nowMillis && index.remove(e.getKey(), location)) {
+        release(location);
+        deleted.accept(e.getKey());
+        count++;
+      }
+    }
+    compact(nowMillis);
+    return count;
+  }
+
+  /** Returns the number of segment files. */
+  @VisibleForTesting
+  int segmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Copies the live records of sealed segments that are mostly garbage to the active segment and
+   * deletes them.
+   */
+  @VisibleForTesting
+  void compact(long nowMillis) {
+    for (Segment segment : segments.values()) {
+      if (segment == active
+          || segment.liveBytes.get() > segment.writeOffset * COMPACTION_THRESHOLD) {
+        continue;
+      }
+      writeLock.lock();
+      try {
+        compact(segment, nowMillis);
+      } catch (IOException e) {
+        log.atSevere().withCause(e).log("Cannot compact %s", segment.path);
+        return;
+      } finally {
+        writeLock.unlock();
+      }
+    }
+  }
+
+  private void compact(Segment segment, long nowMillis) throws IOException {
+    boolean oldest = segments.firstKey() == segment.id;
+    Set<Segment> targets = new HashSet<>();
+    int moved = 0;
+    for (Record record : records(segment)) {
+      byte[] bytes = new byte[record.length];
+      ByteBuffer buffer = segment.buffer.duplicate();
+      buffer.position(record.offset);
+      buffer.get(bytes);
+      if (record.type == PUT) {
+        Location location = index.get(record.key);
+        if (location != null
+            && location.segment == segment
+            && location.offset == record.offset
+            && location.expiresAt >= nowMillis) {
+          Location copy = append(bytes, record.expiresAt);
+          targets.add(copy.segment);
+          if (index.replace(record.key, location, copy)) {
+            moved++;
+          } else {
+            // Removed meanwhile by deleteExpired(), which does not take the write lock: the
+            // copy is garbage and must not be replayed as live on the next startup.
+            release(copy);
+            targets.add(append(encodeRecord(DELETE, 0, record.key, new byte[0]), 0).segment);
+          }
+        }
+      } else if (!oldest && !index.containsKey(record.key)) {
+        // An older segment may still hold a put this tombstone hides.
+        targets.add(append(bytes, 0).segment);
+      }
+    }
+    // The copies must be durable before the only other copy of the records is deleted.
+    for (Segment target : targets) {
+      target.buffer.force();
+    }
+    deleteSegment(segment);
+    log.atFine().log("Compacted %s, moved %d sessions", segment.path, moved);
+  }
+
+  /** Appends {@code record} to the active segment, starting a new one when it is full. */
+  private Location append(byte[] record, long expiresAt) throws IOException {
+    if (record.length > segmentSize) {
+      throw new IOException(
+          String.format(
+              "Record of %d bytes exceeds the segment size of %d bytes",
+              record.length, segmentSize));
+    }
+    Segment segment = active;
+    if (segment.writeOffset + record.length > segment.buffer.capacity()) {
+      segment = createSegment(segment.id + 1);
+      active = segment;
+    }
+    int offset = segment.writeOffset;
+    ByteBuffer buffer = segment.buffer.duplicate();
+    buffer.position(offset);
+    buffer.put(record);
+    segment.writeOffset = offset + record.length;
+    if (expiresAt != 0) {
+      segment.liveBytes.addAndGet(record.length);
+    }
+    return new Location(segment, offset, record.length, expiresAt);
+  }
+
+  private void release(@Nullable Location location) {
+    if (location != null) {
+      location.segment.liveBytes.addAndGet(-location.length);
+    }
+  }
+
+  /** Maps the existing segments and replays them in order to rebuild the index. */
+  private void open() throws IOException {
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(segmentDir, "*" + SEGMENT_SUFFIX)) {
+      stream.forEach(paths::add);
+    }
+    long now = TimeMachine.now().toEpochMilli();
+    for (Path path : paths) {
+      Segment segment = mapSegment(idOf(path), path, Files.size(path));
+      segments.put(segment.id, segment);
+    }
+    for (Segment segment : segments.values()) {
+      for (Record record : records(segment)) {
+        if (record.type == PUT) {
+          release(
+              index.put(
+                  record.key,
+                  new Location(segment, record.offset, record.length, record.expiresAt)));
+          segment.liveBytes.addAndGet(record.length);
+        } else {
+          release(index.remove(record.key));
+        }
+      }
+    }
+    for (Map.Entry<String, Location> e : index.entrySet()) {
+      if (e.getValue().expiresAt < now) {
+        index.remove(e.getKey());
+        release(e.getValue());
+      }
+    }
+    active = segments.isEmpty() ? createSegment(1) : segments.lastEntry().getValue();
+    log.atInfo().log(
+        "Loaded %d sessions from %d segments of %s", index.size(), segments.size(), segmentDir);
+  }
+
+  /**
+   * Reads the valid records of {@code segment} and sets its write offset after the last one. A
+   * record that was not completely written before a crash ends the segment.
+   */
+  private List<Record> records(Segment segment) {
+    List<Record> records = new ArrayList<>();
+    ByteBuffer buffer = segment.buffer.duplicate();
+    int offset = 0;
+    while (offset + RECORD_HEADER_SIZE + 2 <= buffer.capacity()) {
+      int length = buffer.getInt(offset);
+      if (length < RECORD_HEADER_SIZE + 2 || offset + length > buffer.capacity()) {
+        break;
+      }
+      CRC32 crc = new CRC32();
+      ByteBuffer body = buffer.duplicate();
+      body.position(offset + 8).limit(offset + length);
+      crc.update(body);
+      if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+        log.atWarning().log("Ignoring corrupt record at offset %d of %s", offset, segment.path);
+        break;
+      }
+      byte type = buffer.get(offset + 8);
+      long expiresAt = buffer.getLong(offset + 9);
+      byte[] key = new byte[buffer.getShort(offset + RECORD_HEADER_SIZE)];
+      ByteBuffer keyBuffer = buffer.duplicate();
+      keyBuffer.position(offset + RECORD_HEADER_SIZE + 2);
+      keyBuffer.get(key);
+      records.add(new Record(type, expiresAt, new String(key, UTF_8), offset, length));
+      offset += length;
+    }
+    segment.writeOffset = Math.max(segment.writeOffset, offset);
+    return records;
+  }
+
+  private static byte[] encodeRecord(byte type, long expiresAt, String key, byte[] data) {
+    byte[] keyBytes = key.getBytes(UTF_8);
+    int length = RECORD_HEADER_SIZE + 2 + keyBytes.length + data.length;
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    buffer.putInt(length).putInt(0).put(type).putLong(expiresAt);
+    buffer.putShort((short) keyBytes.length).put(keyBytes).put(data);
+    CRC32 crc = new CRC32();
+    crc.update(buffer.array(), 8, length - 8);
+    buffer.putInt(4, (int) crc.getValue());
+    return buffer.array();
+  }
+
+  private Segment createSegment(long id) throws IOException {
+    Path path = segmentDir.resolve(String.format("%016x%s", id, SEGMENT_SUFFIX));
+    Segment segment = mapSegment(id, path, segmentSize);
+    segments.put(id, segment);
+    return segment;
+  }
+
+  private static Segment mapSegment(long id, Path path, long size) throws IOException {
+    // The mapping stays valid once the channel is closed.
+    try (FileChannel channel =
+        FileChannel.open(
+            path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      return new Segment(id, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+  }
+
+  /** Deletes the file of {@code segment}; readers still holding its mapping can finish. */
+  private void deleteSegment(Segment segment) throws IOException {
+    segments.remove(segment.id);
+    Files.deleteIfExists(segment.path);
+  }
+
+  private static long idOf(Path path) throws IOException {
+    String name = path.getFileName().toString();
+    try {
+      return Long.parseUnsignedLong(
+          name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16);
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid segment name " + path, e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return segmentDir.toString();
+  }
+}
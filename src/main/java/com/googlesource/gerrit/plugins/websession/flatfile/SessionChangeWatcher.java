@@ -0,0 +1,285 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.websession.flatfile.Configuration.ChangeDetection;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Evicts sessions kept in memory when their files are changed, e.g. by other masters sharing the
+ * websessions directory, so that lookups can serve them without checking the file each time.
+ *
+ * <p>Changes are reported by a {@link WatchService} where the filesystem supports it. Network
+ * filesystems only notify changes made by the local host, so on those, or with {@code
+ * changeDetection = poll}, the sessions kept in memory are compared with their files periodically
+ * instead. They are polled as well if the directories cannot all be watched, e.g. when there are
+ * more shard directories than {@link #MAX_WATCHED_DIRECTORIES} or the system limit of watches is
+ * reached.
+ */
+@Singleton
+class SessionChangeWatcher implements LifecycleListener {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  /** Filesystem types on which changes made by other hosts are not notified. */
+  private static final ImmutableSet<String> NETWORK_FILESYSTEMS =
+      ImmutableSet.of(
+          "nfs", "nfs4", "cifs", "smb", "smb2", "smbfs", "9p", "afs", "ceph", "glusterfs", "gpfs",
+          "lustre");
+
+  /**
+   * Most directories watched, each using one of the watches available to all processes of the
+   * user, e.g. {@code fs.inotify.max_user_watches} on Linux.
+   */
+  @VisibleForTesting static final int MAX_WATCHED_DIRECTORIES = 1024;
+
+  private final WorkQueue queue;
+  private final FlatFileWebSessionCache flatFileWebSessionCache;
+  private final Configuration config;
+  private final Path websessionsDir;
+  private final Map<WatchKey, Integer> levels = new ConcurrentHashMap<>();
+  private volatile ScheduledExecutorService watchExecutor;
+  private volatile WatchService watchService;
+  private volatile Future<?> watchTask;
+  private volatile boolean polling;
+
+  @Inject
+  SessionChangeWatcher(
+      WorkQueue queue,
+      FlatFileWebSessionCache flatFileWebSessionCache,
+      Configuration config,
+      @WebSessionDir Path websessionsDir) {
+    this.queue = queue;
+    this.flatFileWebSessionCache = flatFileWebSessionCache;
+    this.config = config;
+    this.websessionsDir = websessionsDir;
+  }
+
+  @Override
+  public void start() {
+    // Local copies are validated at their own interval, see TwoTierSessionStore.
+    if (config.getStore() != Configuration.StoreType.FLAT
+        || config.getLocalDirectory() != null
+        || config.getChangeDetection() == ChangeDetection.STAT) {
+      return;
+    }
+    watchExecutor = queue.createQueue(1, "WebSessionChangeWatcher");
+    if (config.getChangeDetection() == ChangeDetection.WATCH) {
+      watchService = newWatchService();
+      if (watchService != null) {
+        watchTask = watchExecutor.submit(this::watch);
+        return;
+      }
+      log.atInfo().log("Polling %s for changes of websessions", websessionsDir);
+    }
+    startPolling(config.getChangePollIntervalMillis());
+  }
+
+  private void startPolling(long initialDelay) {
+    ScheduledExecutorService executor = watchExecutor;
+    if (executor == null) {
+      return;
+    }
+    long interval = config.getChangePollIntervalMillis();
+    watchTask = executor.scheduleWithFixedDelay(this::poll, initialDelay, interval, MILLISECONDS);
+    polling = true;
+    flatFileWebSessionCache.setWatched(true);
+  }
+
+  @Override
+  public void stop() {
+    flatFileWebSessionCache.setWatched(false);
+    if (watchTask != null) {
+      watchTask.cancel(true);
+      watchTask = null;
+    }
+    if (watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        log.atWarning().withCause(e).log("Cannot stop watching %s", websessionsDir);
+      }
+      watchService = null;
+    }
+    if (watchExecutor != null) {
+      watchExecutor.shutdownNow();
+      watchExecutor = null;
+    }
+    levels.clear();
+    polling = false;
+  }
+
+  @VisibleForTesting
+  boolean isPolling() {
+    return polling;
+  }
+
+  @Nullable
+  private WatchService newWatchService() {
+    try {
+      String type = Files.getFileStore(websessionsDir).type().toLowerCase(Locale.US);
+      if (NETWORK_FILESYSTEMS.contains(type) || type.startsWith("fuse")) {
+        return null;
+      }
+      return websessionsDir.getFileSystem().newWatchService();
+    } catch (IOException | UnsupportedOperationException e) {
+      log.atWarning().withCause(e).log("Cannot watch %s", websessionsDir);
+      return null;
+    }
+  }
+
+  private void watch() {
+    try {
+      register(websessionsDir, 0);
+      // Sessions cached before the directories were watched may have changed.
+      flatFileWebSessionCache.onStoreChangesLost();
+      flatFileWebSessionCache.setWatched(true);
+      while (true) {
+        WatchKey key = watchService.take();
+        Integer level = levels.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == OVERFLOW) {
+            flatFileWebSessionCache.onStoreChangesLost();
+          } else if (level != null) {
+            onEvent(((Path) key.watchable()).resolve((Path) event.context()), level);
+          }
+        }
+        if (!key.reset()) {
+          levels.remove(key);
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // Stopped.
+    } catch (IOException | RuntimeException e) {
+      log.atWarning().withCause(e).log(
+          "Cannot watch %s, polling it for changes of websessions instead", websessionsDir);
+      fallBackToPolling();
+    }
+  }
+
+  private void fallBackToPolling() {
+    try {
+      watchService.close();
+    } catch (IOException e) {
+      log.atFine().withCause(e).log("Cannot stop watching %s", websessionsDir);
+    }
+    levels.clear();
+    try {
+      // Changes may have been missed since the directories were last watched.
+      startPolling(0);
+    } catch (RejectedExecutionException e) {
+      // Stopped.
+    }
+  }
+
+  private void onEvent(Path path, int level) {
+    String name = SessionLayout.keyOf(path);
+    if (SessionLayout.isReserved(name) || SessionLayout.isTemporary(name)) {
+      return;
+    }
+    if (level < config.getShardDepth() && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+      try {
+        register(path, level + 1);
+        // Files may have been written to the new shard before it was watched.
+        onExistingFiles(path);
+      } catch (NoSuchFileException e) {
+        // Deleted in the meantime.
+      } catch (IOException e) {
+        // Changes in the shard would be missed.
+        throw new UncheckedIOException(e);
+      }
+      return;
+    }
+    flatFileWebSessionCache.onStoreChange(name);
+  }
+
+  private void onExistingFiles(Path dir) throws IOException {
+    try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(dir)) {
+      for (Path path : dirStream) {
+        String name = SessionLayout.keyOf(path);
+        if (SessionLayout.isReserved(name) || SessionLayout.isTemporary(name)) {
+          continue;
+        }
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+          onExistingFiles(path);
+        } else {
+          flatFileWebSessionCache.onStoreChange(name);
+        }
+      }
+    }
+  }
+
+  /** Watches {@code dir} and the shard directories below it. */
+  private void register(Path dir, int level) throws IOException {
+    if (levels.size() >= MAX_WATCHED_DIRECTORIES) {
+      throw new IOException(
+          String.format("More than %d directories to watch", MAX_WATCHED_DIRECTORIES));
+    }
+    levels.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), level);
+    if (level < config.getShardDepth()) {
+      try (DirectoryStream<Path> dirStream =
+          Files.newDirectoryStream(
+              dir,
+              path ->
+                  !SessionLayout.isReserved(SessionLayout.keyOf(path))
+                      && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))) {
+        for (Path shard : dirStream) {
+          register(shard, level + 1);
+        }
+      }
+    }
+  }
+
+  @VisibleForTesting
+  void poll() {
+    try {
+      for (String key : flatFileWebSessionCache.watchedKeys()) {
+        flatFileWebSessionCache.onStoreChange(key);
+      }
+    } catch (Exception e) {
+      // Do not prevent subsequent scheduled polls from running.
+      log.atSevere().withCause(e).log("Cannot check websessions for changes");
+    }
+  }
+}
@@ -0,0 +1,300 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.httpd.WebSessionManager.Val;
+import com.google.gerrit.server.account.externalids.ExternalId;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes {@link Val} instances stored in session files.
+ *
+ * <p>Sessions are written in a compact binary format:
+ *
+ * <pre>
+ *   offset  0: magic "WSFF"
+ *   offset  4: format version
+ *   offset  5: expiresAt (epoch millis)
+ *   offset 13: refreshCookieAt (epoch millis)
+ *   offset 21: flags, followed by the optional account id, external id,
+ *              session id and auth token
+ * </pre>
+ *
+ * <p>Files that do not start with the magic are read as Java serialized {@link Val}s, as written by
+ * previous versions of this plugin. {@link Val} does not expose a way to build or fully inspect an
+ * instance outside of Gerrit core, so its fields are accessed reflectively. If that is not possible
+ * with the running Gerrit version, Java serialization is used for writing.
+ */
+class SessionCodec {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  static final byte[] MAGIC = {'W', 'S', 'F', 'F'};
+  static final byte VERSION = 1;
+  static final int EXPIRES_AT_OFFSET = 5;
+  static final int REFRESH_COOKIE_AT_OFFSET = 13;
+  static final int HEADER_SIZE = 21;
+  static final int ACCOUNT_ID_OFFSET = HEADER_SIZE + 1;
+
+  private static final int PERSISTENT_COOKIE = 1;
+  private static final int HAS_ACCOUNT_ID = 1 << 1;
+  private static final int HAS_EXTERNAL_ID = 1 << 2;
+  private static final int HAS_EXTERNAL_ID_SCHEME = 1 << 3;
+  private static final int EXTERNAL_ID_CASE_INSENSITIVE = 1 << 4;
+  private static final int HAS_SESSION_ID = 1 << 5;
+  private static final int HAS_AUTH = 1 << 6;
+
+  @Nullable private static final ValAccess ACCESS = ValAccess.create();
+
+  private final boolean writeCompact;
+
+  SessionCodec(boolean writeCompact) {
+    this.writeCompact = writeCompact && ACCESS != null;
+  }
+
+  /** Whether {@code data} starts with the header of the compact format. */
+  static boolean isCompact(byte[] data) {
+    if (data.length < HEADER_SIZE) {
+      return false;
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (data[i] != MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads the expiry from the first {@link #HEADER_SIZE} bytes of a session file without decoding
+   * the session.
+   *
+   * @return expiry in epoch millis, {@code null} if the file is not in the compact format.
+   */
+  @Nullable
+  static Long readExpiresAt(byte[] header) {
+    if (!isCompact(header)) {
+      return null;
+    }
+    return ByteBuffer.wrap(header, EXPIRES_AT_OFFSET, Long.BYTES).getLong();
+  }
+
+  /**
+   * Reads the account id from the first {@code ACCOUNT_ID_OFFSET + 4} bytes of a session file in
+   * the compact format without decoding the session.
+   *
+   * @return the account id, {@code null} if the session has none or {@code data} is too short.
+   */
+  @Nullable
+  static Account.Id readAccountId(byte[] data, int length) {
+    if (length < ACCOUNT_ID_OFFSET + Integer.BYTES || (data[HEADER_SIZE] & HAS_ACCOUNT_ID) == 0) {
+      return null;
+    }
+    return Account.id(ByteBuffer.wrap(data, ACCOUNT_ID_OFFSET, Integer.BYTES).getInt());
+  }
+
+  byte[] encode(Val val) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    if (writeCompact) {
+      try (DataOutputStream out = new DataOutputStream(bytes)) {
+        writeCompact(out, val);
+      }
+    } else {
+      try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+        out.writeObject(val);
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  Val decode(byte[] data) throws IOException, ClassNotFoundException {
+    if (isCompact(data)) {
+      if (ACCESS == null) {
+        throw new IOException("Compact session format is not supported by this Gerrit version");
+      }
+      try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+        return readCompact(in);
+      }
+    }
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+      return (Val) in.readObject();
+    }
+  }
+
+  private static void writeCompact(DataOutputStream out, Val val) throws IOException {
+    Account.Id accountId = ACCESS.get(val, ACCESS.accountId);
+    ExternalId.Key externalId = ACCESS.get(val, ACCESS.externalId);
+    String sessionId = ACCESS.get(val, ACCESS.sessionId);
+    String auth = ACCESS.get(val, ACCESS.auth);
+
+    int flags = 0;
+    if (ACCESS.get(val, ACCESS.persistentCookie)) {
+      flags |= PERSISTENT_COOKIE;
+    }
+    if (accountId != null) {
+      flags |= HAS_ACCOUNT_ID;
+    }
+    if (externalId != null) {
+      flags |= HAS_EXTERNAL_ID;
+      if (externalId.scheme() != null) {
+        flags |= HAS_EXTERNAL_ID_SCHEME;
+      }
+      if (externalId.isCaseInsensitive()) {
+        flags |= EXTERNAL_ID_CASE_INSENSITIVE;
+      }
+    }
+    if (sessionId != null) {
+      flags |= HAS_SESSION_ID;
+    }
+    if (auth != null) {
+      flags |= HAS_AUTH;
+    }
+
+    out.write(MAGIC);
+    out.writeByte(VERSION);
+    out.writeLong(val.getExpiresAt());
+    out.writeLong(ACCESS.<Long>get(val, ACCESS.refreshCookieAt));
+    out.writeByte(flags);
+    if (accountId != null) {
+      out.writeInt(accountId.get());
+    }
+    if (externalId != null) {
+      if (externalId.scheme() != null) {
+        out.writeUTF(externalId.scheme());
+      }
+      out.writeUTF(externalId.id());
+    }
+    if (sessionId != null) {
+      out.writeUTF(sessionId);
+    }
+    if (auth != null) {
+      out.writeUTF(auth);
+    }
+  }
+
+  private static Val readCompact(DataInputStream in) throws IOException {
+    in.skipBytes(MAGIC.length);
+    byte version = in.readByte();
+    if (version != VERSION) {
+      throw new StreamCorruptedException("Unsupported session format version " + version);
+    }
+    long expiresAt = in.readLong();
+    long refreshCookieAt = in.readLong();
+    int flags = in.readUnsignedByte();
+    Account.Id accountId = (flags & HAS_ACCOUNT_ID) != 0 ? Account.id(in.readInt()) : null;
+    ExternalId.Key externalId = null;
+    if ((flags & HAS_EXTERNAL_ID) != 0) {
+      String scheme = (flags & HAS_EXTERNAL_ID_SCHEME) != 0 ? in.readUTF() : null;
+      externalId =
+          ExternalId.Key.create(
+              scheme, in.readUTF(), (flags & EXTERNAL_ID_CASE_INSENSITIVE) != 0);
+    }
+    String sessionId = (flags & HAS_SESSION_ID) != 0 ? in.readUTF() : null;
+    String auth = (flags & HAS_AUTH) != 0 ? in.readUTF() : null;
+    return ACCESS.newVal(
+        accountId,
+        refreshCookieAt,
+        (flags & PERSISTENT_COOKIE) != 0,
+        externalId,
+        expiresAt,
+        sessionId,
+        auth);
+  }
+
+  /** Reflective access to the package-private constructor and fields of {@link Val}. */
+  private static class ValAccess {
+    private final Constructor<Val> constructor;
+    private final Field accountId;
+    private final Field refreshCookieAt;
+    private final Field persistentCookie;
+    private final Field externalId;
+    private final Field sessionId;
+    private final Field auth;
+
+    @Nullable
+    static ValAccess create() {
+      try {
+        return new ValAccess();
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        log.atWarning().withCause(e).log(
+            "Cannot access %s, sessions are stored with Java serialization", Val.class.getName());
+        return null;
+      }
+    }
+
+    private ValAccess() throws ReflectiveOperationException {
+      constructor =
+          Val.class.getDeclaredConstructor(
+              Account.Id.class,
+              long.class,
+              boolean.class,
+              ExternalId.Key.class,
+              long.class,
+              String.class,
+              String.class);
+      constructor.setAccessible(true);
+      accountId = field("accountId");
+      refreshCookieAt = field("refreshCookieAt");
+      persistentCookie = field("persistentCookie");
+      externalId = field("externalId");
+      sessionId = field("sessionId");
+      auth = field("auth");
+    }
+
+    private static Field field(String name) throws NoSuchFieldException {
+      Field f = Val.class.getDeclaredField(name);
+      f.setAccessible(true);
+      return f;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T get(Val val, Field field) throws IOException {
+      try {
+        return (T) field.get(val);
+      } catch (IllegalAccessException e) {
+        throw new IOException("Cannot read " + field.getName(), e);
+      }
+    }
+
+    Val newVal(
+        Account.Id accountId,
+        long refreshCookieAt,
+        boolean persistentCookie,
+        ExternalId.Key externalId,
+        long expiresAt,
+        String sessionId,
+        String auth)
+        throws IOException {
+      try {
+        return constructor.newInstance(
+            accountId, refreshCookieAt, persistentCookie, externalId, expiresAt, sessionId, auth);
+      } catch (ReflectiveOperationException e) {
+        throw new IOException("Cannot create session", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,292 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.common.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Maps session keys to files in the websessions directory.
+ *
+ * <p>With a depth of {@code 0} all sessions are stored directly in the directory. Otherwise they
+ * are fanned out into {@code depth} levels of subdirectories named after consecutive {@code width}
+ * character slices of the hex hash of the key, e.g. {@code 3f/a2/<key>} for a depth and width of
+ * 2. Files left directly in the directory by the flat layout, also those stored meanwhile by
+ * masters not using the shards yet, are still found unless {@code checkFlatLayout} is disabled,
+ * and are moved into their shard by {@link #migrate(Function)}.
+ */
+class SessionLayout {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  static final int MAX_DEPTH = 4;
+  static final int MAX_WIDTH = 4;
+  static final String TEMP_SUFFIX = ".tmp";
+  /** Suffix of flat files taken over by a migration, before they are compared to their shard. */
+  private static final String CLAIM_SUFFIX = ".migrating";
+
+  private final Path root;
+  private final int depth;
+  private final int width;
+  private final boolean checkFlatLayout;
+
+  /**
+   * @param checkFlatLayout whether sessions stored by the flat layout are still looked up, when
+   *     sharded.
+   */
+  SessionLayout(Path root, int depth, int width, boolean checkFlatLayout) {
+    this.root = root;
+    this.depth = Math.min(Math.max(depth, 0), MAX_DEPTH);
+    this.width = Math.min(Math.max(width, 1), MAX_WIDTH);
+    this.checkFlatLayout = this.depth > 0 && checkFlatLayout;
+  }
+
+  Path root() {
+    return root;
+  }
+
+  boolean isSharded() {
+    return depth > 0;
+  }
+
+  /** Whether files may be left directly in the directory by the flat layout. */
+  boolean checksFlatLayout() {
+    return checkFlatLayout;
+  }
+
+  /** Path at which the session with the given key is stored. */
+  Path pathOf(String key) {
+    return shardOf(key).resolve(key);
+  }
+
+  /** Directory holding the session with the given key. */
+  Path shardOf(String key) {
+    if (depth == 0) {
+      return root;
+    }
+    String hash = Hashing.murmur3_128().hashString(key, UTF_8).toString();
+    Path dir = root;
+    for (int level = 0; level < depth; level++) {
+      dir = dir.resolve(hash.substring(level * width, (level + 1) * width));
+    }
+    return dir;
+  }
+
+  /**
+   * Path at which a session may still be stored by the flat layout, {@code null} if it is not
+   * checked.
+   */
+  @Nullable
+  Path legacyPathOf(String key) {
+    return checkFlatLayout ? root.resolve(key) : null;
+  }
+
+  static String keyOf(Path path) {
+    return path.getFileName().toString();
+  }
+
+  /** Whether a file name in the websessions directory is used by the plugin, not a session. */
+  static boolean isReserved(String name) {
+    return name.startsWith(".");
+  }
+
+  /** Whether a file name is the one of a temporary file of a put, not a session. */
+  static boolean isTemporary(String name) {
+    return name.endsWith(TEMP_SUFFIX);
+  }
+
+  /**
+   * Lists all session files, walking the shards. The returned stream must be closed.
+   *
+   * @throws IOException if the websessions directory cannot be listed.
+   */
+  Stream<Path> sessionFiles() throws IOException {
+    return list(root, 0);
+  }
+
+  private Stream<Path> list(Path dir, int level) throws IOException {
+    DirectoryStream<Path> dirStream =
+        Files.newDirectoryStream(
+            dir, path -> !isReserved(keyOf(path)) && !isTemporary(keyOf(path)));
+    Stream<Path> entries =
+        StreamSupport.stream(dirStream.spliterator(), false /* single-threaded */)
+            .onClose(
+                () -> {
+                  try {
+                    dirStream.close();
+                  } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                  }
+                });
+    if (level == depth) {
+      return entries;
+    }
+    return entries.flatMap(
+        path -> {
+          if (isShardName(keyOf(path))) {
+            try {
+              return list(path, level + 1);
+            } catch (IOException e) {
+              log.atSevere().withCause(e).log("Cannot list files in shard %s", path);
+              return Stream.empty();
+            }
+          }
+          // Files directly in the root are left from the flat layout.
+          return level == 0 ? Stream.of(path) : Stream.empty();
+        });
+  }
+
+  private boolean isShardName(String name) {
+    if (name.length() != width) {
+      return false;
+    }
+    for (int i = 0; i < width; i++) {
+      if (Character.digit(name.charAt(i), 16) < 0 || Character.isUpperCase(name.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Moves session files stored by the flat layout into their shard. Safe to run while sessions are
+   * read and written, also by masters still using the flat layout: a flat file is first linked into
+   * its shard, so that it is found at all times, then renamed away and compared to the shard copy.
+   * A flat file rewritten in between is thereby left for the next migration instead of being
+   * deleted, and of two copies the one expiring last is kept.
+   *
+   * @param expiresAt reads the expiry of a session file, {@code null} if it cannot be read.
+   * @return number of files moved.
+   */
+  int migrate(Function<Path, Long> expiresAt) throws IOException {
+    if (depth == 0) {
+      return 0;
+    }
+    int moved = 0;
+    try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(root)) {
+      for (Path path : dirStream) {
+        String name = keyOf(path);
+        if (isReserved(name) && name.endsWith(CLAIM_SUFFIX)) {
+          // Left by a migration interrupted e.g. by a crash.
+          String key = name.substring(1, name.length() - CLAIM_SUFFIX.length());
+          settle(path, pathOf(key), expiresAt);
+          continue;
+        }
+        if (isShardName(name) || isReserved(name) || isTemporary(name)) {
+          // Shards, plugin data and temporary files of earlier versions.
+          continue;
+        }
+        if (migrate(path, name, expiresAt)) {
+          moved++;
+        }
+      }
+    }
+    return moved;
+  }
+
+  /** Moves the flat file of {@code key} into its shard, returns whether it was linked there. */
+  private boolean migrate(Path path, String key, Function<Path, Long> expiresAt) {
+    Path target = pathOf(key);
+    boolean linked;
+    try {
+      Files.createDirectories(target.getParent());
+      // Linking fails if the target exists, unlike a rename which would
+      // silently replace it.
+      Files.createLink(target, path);
+      linked = true;
+    } catch (FileAlreadyExistsException e) {
+      // Rewritten since the layout changed, compared below.
+      linked = false;
+    } catch (NoSuchFileException e) {
+      // Invalidated or migrated concurrently.
+      return false;
+    } catch (IOException | UnsupportedOperationException e) {
+      log.atWarning().withCause(e).log("Cannot move %s to %s", path, target);
+      return false;
+    }
+    Path claim = root.resolve("." + key + CLAIM_SUFFIX);
+    try {
+      Files.move(path, claim, StandardCopyOption.ATOMIC_MOVE);
+    } catch (NoSuchFileException e) {
+      // Taken over by a concurrent migration.
+      return linked;
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot move %s to %s", path, claim);
+      return linked;
+    }
+    settle(claim, target, expiresAt);
+    return linked;
+  }
+
+  /**
+   * Replaces the shard copy {@code target} with the flat copy {@code claim} if the latter expires
+   * later, deletes {@code claim} otherwise. A missing shard copy was invalidated, so the flat copy
+   * is deleted as well.
+   */
+  private static void settle(Path claim, Path target, Function<Path, Long> expiresAt) {
+    try {
+      if (!Files.isSameFile(claim, target) && expiresLater(claim, target, expiresAt)) {
+        Files.move(
+            claim, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return;
+      }
+    } catch (NoSuchFileException e) {
+      // Invalidated since it was linked.
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot compare %s to %s", claim, target);
+      return;
+    }
+    try {
+      Files.deleteIfExists(claim);
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot delete %s", claim);
+    }
+  }
+
+  private static boolean expiresLater(Path a, Path b, Function<Path, Long> expiresAt) {
+    Long aExpiresAt = expiresAt.apply(a);
+    Long bExpiresAt = expiresAt.apply(b);
+    return aExpiresAt != null && (bExpiresAt == null || aExpiresAt > bExpiresAt);
+  }
+
+  /** Removes the flat layout copy of a session, if any is left. */
+  void deleteLegacy(String key) {
+    Path legacy = legacyPathOf(key);
+    if (legacy != null) {
+      deleteLegacy(legacy);
+    }
+  }
+
+  private void deleteLegacy(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot delete %s", path);
+    }
+  }
+}
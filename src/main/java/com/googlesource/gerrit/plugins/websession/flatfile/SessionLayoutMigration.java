@@ -0,0 +1,74 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.util.concurrent.Future;
+
+/** Moves sessions of a flat websessions directory into shards in the background. */
+@Singleton
+class SessionLayoutMigration implements LifecycleListener {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  private final WorkQueue queue;
+  private final Provider<FlatFileSessionStore> flatFileStore;
+  private final Configuration config;
+  private final String pluginName;
+  private Future<?> migrationTask;
+
+  @Inject
+  SessionLayoutMigration(
+      WorkQueue queue,
+      Provider<FlatFileSessionStore> flatFileStore,
+      Configuration config,
+      @PluginName String pluginName) {
+    this.queue = queue;
+    this.flatFileStore = flatFileStore;
+    this.config = config;
+    this.pluginName = pluginName;
+  }
+
+  @Override
+  public void start() {
+    if (config.getStore() == Configuration.StoreType.FLAT && config.getShardDepth() > 0) {
+      migrationTask = queue.getDefaultQueue().submit(this::migrate);
+    }
+  }
+
+  @Override
+  public void stop() {
+    if (migrationTask != null) {
+      migrationTask.cancel(true);
+      migrationTask = null;
+    }
+  }
+
+  private void migrate() {
+    try {
+      int moved = flatFileStore.get().migrateLayout();
+      if (moved > 0) {
+        log.atInfo().log("[%s] Moved %d websessions into shard directories", pluginName, moved);
+      }
+    } catch (Exception e) {
+      log.atSevere().withCause(e).log("[%s] Cannot move websessions into shards", pluginName);
+    }
+  }
+}
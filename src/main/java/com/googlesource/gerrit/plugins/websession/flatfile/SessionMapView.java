@@ -0,0 +1,238 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.httpd.WebSessionManager.Val;
+import java.lang.ref.Cleaner;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
+
+/**
+ * Map view of {@link FlatFileWebSessionCache#asMap()} reading through to the cache.
+ *
+ * <p>Nothing is loaded up front: lookups and updates go through the cache, and iteration lists the
+ * keys of the sessions not written yet and of the store, and reads each session as it is reached,
+ * skipping expired ones like {@link FlatFileWebSessionCache#getIfPresent}. Like iteration of a
+ * {@link java.util.concurrent.ConcurrentHashMap}, iteration is weakly consistent. {@link #size()}
+ * only counts stored sessions. The conditional operations of {@link ConcurrentMap} are not atomic
+ * with respect to other masters.
+ */
+class SessionMapView extends AbstractMap<String, Val> implements ConcurrentMap<String, Val> {
+  /** Closes the listing of iterations abandoned before reaching their end. */
+  private static final Cleaner CLEANER = Cleaner.create();
+
+  private final FlatFileWebSessionCache cache;
+  private Set<Entry<String, Val>> entrySet;
+
+  SessionMapView(FlatFileWebSessionCache cache) {
+    this.cache = cache;
+  }
+
+  @Override
+  @Nullable
+  public Val get(Object key) {
+    return cache.getIfPresent(key);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  @Nullable
+  public Val put(String key, Val value) {
+    Val previous = get(key);
+    cache.put(key, value);
+    return previous;
+  }
+
+  @Override
+  @Nullable
+  public Val remove(Object key) {
+    Val previous = get(key);
+    if (previous != null) {
+      cache.invalidate(key);
+    }
+    return previous;
+  }
+
+  @Override
+  @Nullable
+  public Val putIfAbsent(String key, Val value) {
+    Val previous = get(key);
+    if (previous == null) {
+      cache.put(key, value);
+    }
+    return previous;
+  }
+
+  @Override
+  public boolean remove(Object key, Object value) {
+    if (value != null && value.equals(get(key))) {
+      cache.invalidate(key);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public boolean replace(String key, Val oldValue, Val newValue) {
+    if (oldValue.equals(get(key))) {
+      cache.put(key, newValue);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  @Nullable
+  public Val replace(String key, Val value) {
+    Val previous = get(key);
+    if (previous != null) {
+      cache.put(key, value);
+    }
+    return previous;
+  }
+
+  @Override
+  public void clear() {
+    cache.invalidateAll();
+  }
+
+  @Override
+  public int size() {
+    return (int) Math.min(Integer.MAX_VALUE, cache.size());
+  }
+
+  @Override
+  public boolean isEmpty() {
+    try (Stream<String> keys = cache.keys()) {
+      return keys.noneMatch(key -> cache.readUncached(key) != null);
+    }
+  }
+
+  @Override
+  public Set<Entry<String, Val>> entrySet() {
+    if (entrySet == null) {
+      entrySet = new EntrySet();
+    }
+    return entrySet;
+  }
+
+  private class EntrySet extends AbstractSet<Entry<String, Val>> {
+    @Override
+    public Iterator<Entry<String, Val>> iterator() {
+      return new EntryIterator();
+    }
+
+    @Override
+    public int size() {
+      return SessionMapView.this.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return SessionMapView.this.isEmpty();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      Val val = get(e.getKey());
+      return val != null && Objects.equals(val, e.getValue());
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      return SessionMapView.this.remove(e.getKey(), e.getValue());
+    }
+
+    @Override
+    public void clear() {
+      SessionMapView.this.clear();
+    }
+  }
+
+  /**
+   * Reads each session when it is reached, skipping those expired or deleted since they were
+   * listed.
+   */
+  private class EntryIterator implements Iterator<Entry<String, Val>> {
+    private final Iterator<String> keys;
+    private final Cleaner.Cleanable listing;
+    private Entry<String, Val> next;
+    private String lastKey;
+
+    EntryIterator() {
+      Stream<String> stream = cache.keys();
+      keys = stream.iterator();
+      listing = CLEANER.register(this, stream::close);
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next == null && keys.hasNext()) {
+        String key = keys.next();
+        // Read from the store so that iterating does not flush the
+        // sessions kept in memory.
+        Val val = cache.readUncached(key);
+        if (val != null) {
+          next = new SimpleImmutableEntry<>(key, val);
+        }
+      }
+      if (next == null) {
+        listing.clean();
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    public Entry<String, Val> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Entry<String, Val> entry = next;
+      next = null;
+      lastKey = entry.getKey();
+      return entry;
+    }
+
+    @Override
+    public void remove() {
+      if (lastKey == null) {
+        throw new IllegalStateException();
+      }
+      cache.invalidate(lastKey);
+      lastKey = null;
+    }
+  }
+}
@@ -0,0 +1,225 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Runs an action on entries of the websessions directory in batches, on a dedicated pool of
+ * threads and at a bounded rate.
+ *
+ * <p>Scans stop at the next batch when the thread running them is interrupted, e.g. when the
+ * cleanup task is cancelled, when the scanner is stopped, or when the guard of the thread running
+ * them, see {@link #guarded}, returns {@code false}. A stopped scan reports that it did not
+ * process all entries, so that indexes are not marked complete. Every action of a scan is
+ * idempotent, so an interrupted scan is simply resumed by the next one.
+ */
+@Singleton
+class SessionScanner implements LifecycleListener {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  @Nullable private final WorkQueue queue;
+  private final int threads;
+  private final int batchSize;
+  @Nullable private final RateLimiter rateLimiter;
+  @Nullable private volatile ExecutorService executor;
+  private final ThreadLocal<BooleanSupplier> guard = new ThreadLocal<>();
+
+  @Inject
+  SessionScanner(WorkQueue queue, Configuration config) {
+    this(
+        queue,
+        config.getCleanupThreads(),
+        config.getCleanupBatchSize(),
+        config.getCleanupFilesPerSecond());
+  }
+
+  SessionScanner(
+      @Nullable WorkQueue queue, int threads, int batchSize, double filesPerSecond) {
+    this.queue = queue;
+    this.threads = Math.max(threads, 1);
+    this.batchSize = Math.max(batchSize, 1);
+    this.rateLimiter = filesPerSecond > 0 ? RateLimiter.create(filesPerSecond) : null;
+  }
+
+  /** Scanner running all actions on the calling thread, without rate limit. */
+  static SessionScanner sequential() {
+    return new SessionScanner(null, 1, Configuration.DEFAULT_CLEANUP_BATCH_SIZE, 0);
+  }
+
+  @Override
+  public void start() {
+    if (queue != null && threads > 1) {
+      executor = queue.createQueue(threads, "WebSessionCleanupWorker");
+    }
+  }
+
+  @Override
+  public void stop() {
+    ExecutorService e = executor;
+    if (e != null) {
+      executor = null;
+      e.shutdownNow();
+    }
+  }
+
+  /** Runs {@code task}, checking {@code guard} before each batch of its scans on this thread. */
+  void guarded(BooleanSupplier guard, Runnable task) {
+    this.guard.set(guard);
+    try {
+      task.run();
+    } finally {
+      this.guard.remove();
+    }
+  }
+
+  /**
+   * Runs {@code action} on all {@code items} and waits for completion.
+   *
+   * @return {@code false} if the scan was interrupted before all items were processed.
+   */
+  <T> boolean forEach(Iterator<T> items, Consumer<T> action) {
+    ExecutorService pool = executor;
+    BooleanSupplier mayContinue = guard.get();
+    Semaphore inFlight = new Semaphore(threads);
+    List<Future<?>> pending = new ArrayList<>();
+    AtomicBoolean stopped = new AtomicBoolean();
+    List<T> batch = new ArrayList<>();
+    try {
+      while (items.hasNext() && !stopped.get()) {
+        batch.add(items.next());
+        if (batch.size() < batchSize && items.hasNext()) {
+          continue;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+          throw new InterruptedException();
+        }
+        if (mayContinue != null && !mayContinue.getAsBoolean()) {
+          stopped.set(true);
+          break;
+        }
+        if (rateLimiter != null) {
+          rateLimiter.acquire(batch.size());
+        }
+        List<T> work = batch;
+        batch = new ArrayList<>();
+        if (pool == null) {
+          if (!run(work, action)) {
+            throw new InterruptedException();
+          }
+          continue;
+        }
+        inFlight.acquire();
+        try {
+          pending.add(
+              pool.submit(
+                  () -> {
+                    try {
+                      if (!run(work, action)) {
+                        stopped.set(true);
+                      }
+                    } finally {
+                      inFlight.release();
+                    }
+                  }));
+        } catch (RejectedExecutionException e) {
+          inFlight.release();
+          stopped.set(true);
+        }
+        pending.removeIf(Future::isDone);
+      }
+      for (Future<?> f : pending) {
+        if (!await(f, pool)) {
+          stopped.set(true);
+        }
+      }
+      if (stopped.get()) {
+        // The pool was shut down, e.g. when the plugin is unloaded, or the guard failed.
+        log.atInfo().log("Websessions scan stopped");
+        return false;
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      pending.forEach(f -> f.cancel(true));
+      log.atInfo().log("Websessions scan interrupted");
+      return false;
+    } catch (ExecutionException e) {
+      log.atSevere().withCause(e).log("Websessions scan failed");
+      return false;
+    }
+  }
+
+  /**
+   * Waits for a batch, which is never run if the pool was shut down before it started.
+   *
+   * @return whether the batch was run.
+   */
+  private static boolean await(Future<?> f, ExecutorService pool)
+      throws InterruptedException, ExecutionException {
+    while (true) {
+      try {
+        f.get(1, SECONDS);
+        return true;
+      } catch (TimeoutException e) {
+        if (pool.isTerminated() && !f.isDone()) {
+          return false;
+        }
+      } catch (CancellationException e) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Runs {@code action} on the items of a batch.
+   *
+   * @return {@code false} if the thread was interrupted before all items were processed.
+   */
+  private static <T> boolean run(List<T> work, Consumer<T> action) {
+    for (T item : work) {
+      if (Thread.currentThread().isInterrupted()) {
+        return false;
+      }
+      try {
+        action.accept(item);
+      } catch (RuntimeException e) {
+        log.atSevere().withCause(e).log("Cannot process %s", item);
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,155 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.httpd.WebSessionManager.Val;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Persistent storage of sessions beneath {@link FlatFileWebSessionCache}.
+ *
+ * <p>The cache adds the in-memory tier, the negative lookup cache, write-behind and metrics on top
+ * of a store, so a store only has to persist sessions. Stores are shared by all request threads
+ * and by the cleanup, and must be safe for concurrent use. Errors other than those of {@link
+ * #write} are logged by the store and reported as missing sessions.
+ *
+ * <p>The implementation is selected with the {@code store} option, see {@link Module}.
+ */
+interface SessionStore {
+
+  /**
+   * Prepares the store once the plugin started, before sessions are looked up. Blocking work such
+   * as deleting files belongs here rather than in the constructor, which runs during injection.
+   */
+  default void start() {}
+
+  /** A session together with the version of the store it was read from or written to. */
+  class Versioned {
+    private final Val val;
+    private final Object version;
+
+    Versioned(Val val, Object version) {
+      this.val = val;
+      this.version = version;
+    }
+
+    Val val() {
+      return val;
+    }
+
+    Object version() {
+      return version;
+    }
+  }
+
+  /**
+   * Returns a token that changes whenever the session of {@code key} is written or deleted, also
+   * by other masters sharing the store. It is compared with {@link Object#equals(Object)} to decide
+   * whether a session kept in memory is still current, so it must be cheaper than {@link
+   * #read(String)}.
+   *
+   * @return the version, or {@code null} if no session is stored for {@code key}.
+   */
+  @Nullable
+  Object version(String key);
+
+  /** Returns the session stored for {@code key}, {@code null} if there is none. */
+  @Nullable
+  Val read(String key);
+
+  /**
+   * Stores the session of {@code key}.
+   *
+   * @param previous session last read or written for {@code key} on this master, if known. The
+   *     store may use it to skip or shorten the write when its version is still current.
+   * @return version of the stored session, {@code null} if it is not known.
+   */
+  @Nullable
+  Object write(String key, Val val, @Nullable Versioned previous) throws IOException;
+
+  void delete(String key);
+
+  void deleteAll();
+
+  /** Lists the keys of all stored sessions. The returned stream must be closed. */
+  Stream<String> keys();
+
+  /** Returns the number of stored sessions. */
+  default long count() {
+    try (Stream<String> keys = keys()) {
+      return keys.count();
+    }
+  }
+
+  /**
+   * Lists the keys of the sessions of {@code accountId}. By default all sessions are read; stores
+   * maintaining an index answer in time proportional to the sessions of the account.
+   */
+  default ImmutableList<String> keysOf(Account.Id accountId) {
+    try (Stream<String> keys = keys()) {
+      return keys.filter(
+              key -> {
+                Val val = read(key);
+                return val != null && accountId.equals(val.getAccountId());
+              })
+          .collect(toImmutableList());
+    }
+  }
+
+  /**
+   * Returns the expiry of the session of {@code key}, reading as little of it as the store allows.
+   *
+   * @return expiry in epoch millis, {@code null} if no session is stored for {@code key}.
+   */
+  @Nullable
+  Long expiresAt(String key);
+
+  /**
+   * Deletes what writes interrupted e.g. by a crash left behind, such as temporary files. Called
+   * after each cleanup.
+   *
+   * @return number of files deleted.
+   */
+  default long deleteOrphans() {
+    return 0;
+  }
+
+  /**
+   * Deletes the sessions that expired before {@code now}.
+   *
+   * @param deleted called with the key of each deleted session.
+   * @return number of sessions deleted.
+   */
+  long deleteExpired(Instant now, Consumer<String> deleted);
+
+  /**
+   * Deletes the expired sessions that only this master keeps, e.g. local copies. Called by the
+   * cleanup of the masters that leave {@link #deleteExpired} to another master, see {@link
+   * CleanupLease}.
+   *
+   * @return number of sessions deleted.
+   */
+  default long deleteExpiredLocal(Instant now) {
+    return 0;
+  }
+}
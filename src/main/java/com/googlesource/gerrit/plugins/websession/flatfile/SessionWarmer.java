@@ -0,0 +1,158 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static java.util.Comparator.comparingLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.websession.flatfile.FlatFileWebSessionCache.TimeMachine;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Preloads the most recently used sessions into memory after the plugin starts, so that the first
+ * request of each active user after a restart does not read its session from the directory.
+ *
+ * <p>Sessions are extended when they are used, so the most recently used ones are those expiring
+ * last. Warm-up runs in the background and stops once {@code warmupSessions} sessions are loaded,
+ * or after {@code warmupTimeout}.
+ */
+@Singleton
+class SessionWarmer implements LifecycleListener {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  private static class Candidate {
+    final String key;
+    final long expiresAt;
+
+    Candidate(String key, long expiresAt) {
+      this.key = key;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private final WorkQueue queue;
+  private final FlatFileWebSessionCache flatFileWebSessionCache;
+  private final SessionStore store;
+  private final Configuration config;
+  private ScheduledExecutorService warmupExecutor;
+
+  @Inject
+  SessionWarmer(
+      WorkQueue queue,
+      FlatFileWebSessionCache flatFileWebSessionCache,
+      SessionStore store,
+      Configuration config) {
+    this.queue = queue;
+    this.flatFileWebSessionCache = flatFileWebSessionCache;
+    this.store = store;
+    this.config = config;
+  }
+
+  @Override
+  public void start() {
+    int limit = Math.min(config.getWarmupSessions(), config.getMemoryCacheSize());
+    if (limit == 0) {
+      return;
+    }
+    long deadline =
+        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getWarmupTimeoutMillis());
+    warmupExecutor = queue.createQueue(config.getWarmupThreads(), "WebSessionWarmup");
+    ScheduledExecutorService executor = warmupExecutor;
+    executor.execute(() -> warmUp(executor, limit, deadline));
+  }
+
+  @Override
+  public void stop() {
+    if (warmupExecutor != null) {
+      warmupExecutor.shutdownNow();
+      warmupExecutor = null;
+    }
+  }
+
+  /**
+   * Selects the {@code limit} sessions expiring last and loads them on {@code warmupThreads} tasks
+   * of {@code executor}, until {@code deadline} as given by {@link System#nanoTime()}.
+   */
+  @VisibleForTesting
+  void warmUp(Executor executor, int limit, long deadline) {
+    long start = System.nanoTime();
+    Queue<String> pending = new ConcurrentLinkedQueue<>(selectRecent(limit, deadline));
+    int total = pending.size();
+    int threads = Math.min(config.getWarmupThreads(), Math.max(total, 1));
+    AtomicInteger running = new AtomicInteger(threads);
+    AtomicInteger loaded = new AtomicInteger();
+    for (int i = 0; i < threads; i++) {
+      executor.execute(
+          () -> {
+            String key;
+            while (System.nanoTime() < deadline
+                && !Thread.currentThread().isInterrupted()
+                && (key = pending.poll()) != null) {
+              if (flatFileWebSessionCache.preload(key)) {
+                loaded.incrementAndGet();
+              }
+            }
+            if (running.decrementAndGet() == 0) {
+              log.atInfo().log(
+                  "Preloaded %d of %d selected websessions in %d ms",
+                  loaded.get(), total, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+          });
+    }
+  }
+
+  /** Returns the keys of up to {@code limit} valid sessions expiring last, latest first. */
+  private ImmutableList<String> selectRecent(int limit, long deadline) {
+    long now = TimeMachine.now().toEpochMilli();
+    PriorityQueue<Candidate> recent = new PriorityQueue<>(limit, comparingLong(c -> c.expiresAt));
+    try (Stream<String> keys = store.keys()) {
+      Iterator<String> it = keys.iterator();
+      while (it.hasNext()
+          && System.nanoTime() < deadline
+          && !Thread.currentThread().isInterrupted()) {
+        String key = it.next();
+        Long expiresAt = store.expiresAt(key);
+        if (expiresAt == null || expiresAt <= now) {
+          continue;
+        }
+        if (recent.size() < limit) {
+          recent.add(new Candidate(key, expiresAt));
+        } else if (recent.peek().expiresAt < expiresAt) {
+          recent.poll();
+          recent.add(new Candidate(key, expiresAt));
+        }
+      }
+    }
+    ImmutableList.Builder<String> selected = ImmutableList.builder();
+    recent.stream()
+        .sorted(comparingLong((Candidate c) -> c.expiresAt).reversed())
+        .forEachOrdered(c -> selected.add(c.key));
+    return selected.build();
+  }
+}
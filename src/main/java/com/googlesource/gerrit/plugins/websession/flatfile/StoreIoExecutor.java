@@ -0,0 +1,66 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Provides the {@code ioConcurrency} threads on which {@link GuardedSessionStore} runs operations
+ * on single sessions. Operations are rejected before the plugin started and after it stopped.
+ */
+@Singleton
+class StoreIoExecutor implements LifecycleListener, Executor {
+  private final WorkQueue queue;
+  private final Configuration config;
+  private volatile ExecutorService ioExecutor;
+
+  @Inject
+  StoreIoExecutor(WorkQueue queue, Configuration config) {
+    this.queue = queue;
+    this.config = config;
+  }
+
+  @Override
+  public void start() {
+    if (config.getIoConcurrency() > 0) {
+      ioExecutor = queue.createQueue(config.getIoConcurrency(), "WebSessionIO");
+    }
+  }
+
+  @Override
+  public void stop() {
+    ExecutorService e = ioExecutor;
+    if (e != null) {
+      ioExecutor = null;
+      // Operations blocked by the filesystem are abandoned by their callers anyway.
+      e.shutdownNow();
+    }
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    ExecutorService e = ioExecutor;
+    if (e == null) {
+      throw new RejectedExecutionException("Websession I/O executor is not running");
+    }
+    e.execute(command);
+  }
+}
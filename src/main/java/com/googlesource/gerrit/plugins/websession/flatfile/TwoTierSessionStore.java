@@ -0,0 +1,294 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.Striped;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.httpd.WebSessionManager.Val;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Mirrors the sessions used on this master from the shared store to a directory on local disk, e.g.
+ * an SSD or a tmpfs, and serves reads from there.
+ *
+ * <p>Each local copy remembers the version of the shared store it was copied from. It is only
+ * served while the shared store still has that version, which is checked at most once per {@code
+ * localValidationInterval}; in between, changes made by other masters are not seen. Copies that no
+ * longer match are deleted and the session is read from the shared store again.
+ *
+ * <p>The versions are only kept in memory, so copies left by a previous run are deleted on start.
+ * At most {@code localCacheSize} sessions are copied, the copies of the least recently used ones
+ * are deleted. Copies of sessions deleted by other masters are deleted by the cleanup once they
+ * expire.
+ */
+class TwoTierSessionStore implements SessionStore {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  /** Version of the shared store a local copy was made from, and when it last matched. */
+  private static class Mirror {
+    final Object sharedVersion;
+    final long checkedAt;
+
+    Mirror(Object sharedVersion, long checkedAt) {
+      this.sharedVersion = sharedVersion;
+      this.checkedAt = checkedAt;
+    }
+  }
+
+  private final SessionStore shared;
+  private final FlatFileSessionStore local;
+  private final long validationNanos;
+  private final ConcurrentMap<String, Mirror> mirrors;
+  /** Keeps the local copy of a session and its version consistent with each other. */
+  private final Striped<Lock> locks = Striped.lock(64);
+
+  TwoTierSessionStore(SessionStore shared, FlatFileSessionStore local, Configuration config) {
+    this.shared = shared;
+    this.local = local;
+    this.validationNanos = MILLISECONDS.toNanos(config.getLocalValidationIntervalMillis());
+    this.mirrors =
+        CacheBuilder.newBuilder()
+            .maximumSize(config.getLocalCacheSize())
+            .removalListener(this::onRemoval)
+            .<String, Mirror>build()
+            .asMap();
+  }
+
+  @Override
+  public void start() {
+    shared.start();
+    // Copies of a previous run cannot be validated.
+    local.deleteAll();
+  }
+
+  @Override
+  @Nullable
+  public Object version(String key) {
+    Mirror mirror = mirrors.get(key);
+    if (mirror != null && isFresh(mirror)) {
+      return mirror.sharedVersion;
+    }
+    Object version = shared.version(key);
+    if (mirror != null) {
+      validate(key, mirror, version);
+    }
+    return version;
+  }
+
+  @Override
+  @Nullable
+  public Val read(String key) {
+    Mirror mirror = mirrors.get(key);
+    if (mirror != null && isFresh(mirror)) {
+      Val val = readLocal(key);
+      if (val != null) {
+        return val;
+      }
+      mirror = null;
+    }
+    Object version = shared.version(key);
+    if (mirror != null && validate(key, mirror, version)) {
+      Val val = readLocal(key);
+      if (val != null) {
+        return val;
+      }
+    }
+    if (version == null) {
+      return null;
+    }
+    Mirror before = mirrors.get(key);
+    Val val = shared.read(key);
+    if (val != null) {
+      Lock lock = locks.get(key);
+      lock.lock();
+      try {
+        // Not copied if a concurrent write copied a newer session meanwhile. A session written by
+        // another master after the version was read is copied, but does not match on validation.
+        if (mirrors.get(key) == before) {
+          copy(key, val, version);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    return val;
+  }
+
+  @Override
+  @Nullable
+  public Object write(String key, Val val, @Nullable Versioned previous) throws IOException {
+    Lock lock = locks.get(key);
+    lock.lock();
+    try {
+      Object version = shared.write(key, val, previous);
+      if (version != null) {
+        copy(key, val, version);
+      } else {
+        deleteLocal(key);
+      }
+      return version;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void delete(String key) {
+    Lock lock = locks.get(key);
+    lock.lock();
+    try {
+      shared.delete(key);
+      deleteLocal(key);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void deleteAll() {
+    shared.deleteAll();
+    mirrors.clear();
+    local.deleteAll();
+  }
+
+  @Override
+  public Stream<String> keys() {
+    return shared.keys();
+  }
+
+  @Override
+  public long count() {
+    return shared.count();
+  }
+
+  @Override
+  public ImmutableList<String> keysOf(Account.Id accountId) {
+    return shared.keysOf(accountId);
+  }
+
+  @Override
+  @Nullable
+  public Long expiresAt(String key) {
+    return shared.expiresAt(key);
+  }
+
+  @Override
+  public long deleteOrphans() {
+    return shared.deleteOrphans() + local.deleteOrphans();
+  }
+
+  /** Deletes the expired sessions of the shared store, then the expired local copies. */
+  @Override
+  public long deleteExpired(Instant now, Consumer<String> deleted) {
+    long count =
+        shared.deleteExpired(
+            now,
+            key -> {
+              deleteLocal(key);
+              deleted.accept(key);
+            });
+    deleteExpiredLocal(now);
+    return count;
+  }
+
+  /** Deletes the expired local copies. */
+  @Override
+  public long deleteExpiredLocal(Instant now) {
+    long count = local.deleteExpired(now, mirrors::remove);
+    log.atFine().log("Deleted %d expired local copies of websessions", count);
+    return count;
+  }
+
+  @Override
+  public String toString() {
+    return shared.toString();
+  }
+
+  /**
+   * Deletes the copy of a session evicted from {@link #mirrors}. Not locked, as evictions happen
+   * while the lock of another session is held; a copy written meanwhile is deleted as well, and is
+   * read from the shared store again.
+   */
+  private void onRemoval(RemovalNotification<String, Mirror> n) {
+    if (n.wasEvicted() && !mirrors.containsKey(n.getKey())) {
+      local.delete(n.getKey());
+    }
+  }
+
+  private boolean isFresh(Mirror mirror) {
+    return System.nanoTime() - mirror.checkedAt < validationNanos;
+  }
+
+  /**
+   * Compares the local copy of {@code key} with the {@code version} of the shared store, deletes it
+   * if they differ.
+   *
+   * @return whether the local copy is current.
+   */
+  private boolean validate(String key, Mirror mirror, @Nullable Object version) {
+    if (mirror.sharedVersion.equals(version)) {
+      mirrors.replace(key, mirror, new Mirror(version, System.nanoTime()));
+      return true;
+    }
+    Lock lock = locks.get(key);
+    lock.lock();
+    try {
+      // Unless it was copied again meanwhile.
+      if (mirrors.remove(key, mirror)) {
+        local.delete(key);
+      }
+    } finally {
+      lock.unlock();
+    }
+    return false;
+  }
+
+  /** Reads the local copy of {@code key}, forgets it if it cannot be read. */
+  @Nullable
+  private Val readLocal(String key) {
+    Val val = local.read(key);
+    if (val == null) {
+      deleteLocal(key);
+    }
+    return val;
+  }
+
+  private void copy(String key, Val val, Object sharedVersion) {
+    try {
+      local.write(key, val, null);
+      mirrors.put(key, new Mirror(sharedVersion, System.nanoTime()));
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot copy session to %s", local);
+      deleteLocal(key);
+    }
+  }
+
+  private void deleteLocal(String key) {
+    mirrors.remove(key);
+    local.delete(key);
+  }
+}
@@ -0,0 +1,248 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.cache.CacheStats;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Histogram0;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Cache statistics and Gerrit metrics of the websessions store.
+ *
+ * <p>A hit is a lookup that found a session, in memory or on disk, a miss one that did not. Loads
+ * are reads of session files and calls to the loader passed to {@code get}, evictions are expired
+ * sessions deleted by cleanup or after a lookup found them expired.
+ */
+@Singleton
+class WebSessionMetrics {
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder loadSuccessCount = new LongAdder();
+  private final LongAdder loadExceptionCount = new LongAdder();
+  private final LongAdder totalLoadTime = new LongAdder();
+  private final LongAdder evictionCount = new LongAdder();
+
+  private final Timer0 getIfPresentLatency;
+  private final Timer0 putLatency;
+  private final Timer0 invalidateLatency;
+  private final Timer0 cleanupLatency;
+  private final Counter0 bytesRead;
+  private final Counter0 bytesWritten;
+  private final Counter0 readFailures;
+  private final Counter0 putsUnchanged;
+  private final Counter0 negativeHits;
+  private final Counter0 expiredLookups;
+  private final Counter0 fallbackLookups;
+  private final Counter0 memoryHits;
+  private final Counter0 memoryMisses;
+  private final Counter0 storeTimeouts;
+  private final Counter0 storeRejected;
+  private final Counter0 breakerTrips;
+  private final MetricMaker metricMaker;
+  private final Histogram0 cleanupDeleted;
+
+  @Inject
+  WebSessionMetrics(MetricMaker metricMaker) {
+    this.metricMaker = metricMaker;
+    getIfPresentLatency = newLatency(metricMaker, "get_if_present", "Latency of session lookups");
+    putLatency = newLatency(metricMaker, "put", "Latency of session writes");
+    invalidateLatency = newLatency(metricMaker, "invalidate", "Latency of session deletions");
+    cleanupLatency = newLatency(metricMaker, "cleanup", "Duration of cleanup runs");
+    bytesRead =
+        metricMaker.newCounter(
+            "read/bytes",
+            new Description("Bytes read from session files").setCumulative().setUnit(Units.BYTES));
+    bytesWritten =
+        metricMaker.newCounter(
+            "write/bytes",
+            new Description("Bytes written to session files").setCumulative().setUnit(Units.BYTES));
+    readFailures =
+        metricMaker.newCounter(
+            "read/failures",
+            new Description("Session files that could not be read or decoded")
+                .setCumulative()
+                .setUnit("failures"));
+    putsUnchanged =
+        metricMaker.newCounter(
+            "put/unchanged",
+            new Description("Session writes skipped because the session did not change")
+                .setCumulative()
+                .setUnit("writes"));
+    negativeHits =
+        metricMaker.newCounter(
+            "get_if_present/negative_hits",
+            new Description("Lookups of keys recently found missing, answered without I/O")
+                .setCumulative()
+                .setUnit("lookups"));
+    expiredLookups =
+        metricMaker.newCounter(
+            "get_if_present/expired",
+            new Description("Lookups of expired sessions, answered as misses")
+                .setCumulative()
+                .setUnit("lookups"));
+    fallbackLookups =
+        metricMaker.newCounter(
+            "get_if_present/fallbacks",
+            new Description("Lookups answered from memory because the store was unavailable")
+                .setCumulative()
+                .setUnit("lookups"));
+    memoryHits =
+        metricMaker.newCounter(
+            "memory/hits",
+            new Description("Lookups answered from the sessions kept in memory")
+                .setCumulative()
+                .setUnit("lookups"));
+    memoryMisses =
+        metricMaker.newCounter(
+            "memory/misses",
+            new Description("Lookups of sessions not kept in memory or changed in the store")
+                .setCumulative()
+                .setUnit("lookups"));
+    storeTimeouts =
+        metricMaker.newCounter(
+            "store/timeouts",
+            new Description("Store operations given up after the I/O timeout")
+                .setCumulative()
+                .setUnit("operations"));
+    storeRejected =
+        metricMaker.newCounter(
+            "store/rejected",
+            new Description("Store operations failed fast while the circuit breaker was open")
+                .setCumulative()
+                .setUnit("operations"));
+    breakerTrips =
+        metricMaker.newCounter(
+            "store/breaker_trips",
+            new Description("Times the circuit breaker of the store opened")
+                .setCumulative()
+                .setUnit("trips"));
+    cleanupDeleted =
+        metricMaker.newHistogram(
+            "cleanup/deleted",
+            new Description("Expired sessions deleted per cleanup run")
+                .setCumulative()
+                .setUnit("sessions"));
+  }
+
+  private static Timer0 newLatency(MetricMaker metricMaker, String operation, String description) {
+    return metricMaker.newTimer(
+        operation + "/latency",
+        new Description(description).setCumulative().setUnit(Units.MILLISECONDS));
+  }
+
+  void recordGetIfPresent(boolean found, long elapsedNanos) {
+    (found ? hitCount : missCount).increment();
+    getIfPresentLatency.record(elapsedNanos, NANOSECONDS);
+  }
+
+  void recordLoad(boolean success, long elapsedNanos) {
+    (success ? loadSuccessCount : loadExceptionCount).increment();
+    totalLoadTime.add(elapsedNanos);
+  }
+
+  void recordNegativeHit() {
+    negativeHits.increment();
+  }
+
+  void recordExpiredLookup() {
+    expiredLookups.increment();
+  }
+
+  void recordFallbackLookup() {
+    fallbackLookups.increment();
+  }
+
+  /** Records a lookup of the sessions kept in memory, see {@link LocalWebSessionCache}. */
+  void recordMemoryLookup(boolean hit) {
+    (hit ? memoryHits : memoryMisses).increment();
+  }
+
+  void recordStoreTimeout() {
+    storeTimeouts.increment();
+  }
+
+  void recordStoreRejected() {
+    storeRejected.increment();
+  }
+
+  void recordBreakerTrip() {
+    breakerTrips.increment();
+  }
+
+  /** Reports the state of the circuit breaker: 0 closed, 1 open, 2 half open. */
+  void registerBreakerState(Supplier<Integer> state) {
+    metricMaker.newCallbackMetric(
+        "store/breaker_state",
+        Integer.class,
+        new Description("State of the circuit breaker of the store: 0 closed, 1 open, 2 half open")
+            .setGauge(),
+        state);
+  }
+
+  void recordRead(long bytes) {
+    bytesRead.incrementBy(bytes);
+  }
+
+  void recordReadFailure() {
+    readFailures.increment();
+  }
+
+  void recordPut(long elapsedNanos) {
+    putLatency.record(elapsedNanos, NANOSECONDS);
+  }
+
+  void recordWrite(long bytes) {
+    bytesWritten.incrementBy(bytes);
+  }
+
+  void recordPutUnchanged() {
+    putsUnchanged.increment();
+  }
+
+  void recordInvalidate(long elapsedNanos) {
+    invalidateLatency.record(elapsedNanos, NANOSECONDS);
+  }
+
+  void recordCleanup(long deleted, long elapsedNanos) {
+    evictionCount.add(deleted);
+    cleanupDeleted.record(deleted);
+    cleanupLatency.record(elapsedNanos, NANOSECONDS);
+  }
+
+  /** Records sessions found expired by a lookup and deleted outside of cleanup runs. */
+  void recordExpiredDeletions(long deleted) {
+    evictionCount.add(deleted);
+  }
+
+  CacheStats stats() {
+    return new CacheStats(
+        hitCount.sum(),
+        missCount.sum(),
+        loadSuccessCount.sum(),
+        loadExceptionCount.sum(),
+        totalLoadTime.sum(),
+        evictionCount.sum());
+  }
+}
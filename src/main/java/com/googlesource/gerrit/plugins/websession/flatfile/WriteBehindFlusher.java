@@ -0,0 +1,81 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+/** Periodically writes the sessions put in write-behind mode, and writes the rest on stop. */
+@Singleton
+class WriteBehindFlusher implements LifecycleListener {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  private final WorkQueue queue;
+  private final FlatFileWebSessionCache flatFileWebSessionCache;
+  private final Configuration config;
+  private ScheduledExecutorService flushExecutor;
+  private ScheduledFuture<?> scheduledFlushTask;
+
+  @Inject
+  WriteBehindFlusher(
+      WorkQueue queue, FlatFileWebSessionCache flatFileWebSessionCache, Configuration config) {
+    this.queue = queue;
+    this.flatFileWebSessionCache = flatFileWebSessionCache;
+    this.config = config;
+  }
+
+  @Override
+  public void start() {
+    if (!config.isWriteBehind()) {
+      return;
+    }
+    flushExecutor = queue.createQueue(1, "WebSessionWriteBehind");
+    flatFileWebSessionCache.setWriteBehindExecutor(flushExecutor);
+    long delay = config.getWriteBehindDelayMillis();
+    scheduledFlushTask =
+        flushExecutor.scheduleWithFixedDelay(this::flush, delay, delay, MILLISECONDS);
+  }
+
+  @Override
+  public void stop() {
+    if (scheduledFlushTask != null) {
+      scheduledFlushTask.cancel(false);
+      scheduledFlushTask = null;
+    }
+    if (flushExecutor != null) {
+      flatFileWebSessionCache.setWriteBehindExecutor(null);
+      flushExecutor.shutdown();
+      flushExecutor = null;
+      // Sessions put after the last scheduled flush.
+      flush();
+    }
+  }
+
+  private void flush() {
+    try {
+      flatFileWebSessionCache.flushPendingWrites();
+    } catch (Exception e) {
+      // Do not prevent subsequent scheduled flushes from running.
+      log.atSevere().withCause(e).log("Cannot write pending websessions");
+    }
+  }
+}
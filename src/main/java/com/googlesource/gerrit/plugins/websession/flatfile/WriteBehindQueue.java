@@ -0,0 +1,163 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.Striped;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.httpd.WebSessionManager.Val;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiConsumer;
+
+/**
+ * Sessions put but not written yet.
+ *
+ * <p>Only the latest session of each key is kept, so a session put several times before a flush is
+ * written once. A session stays visible through {@link #get(String)} until it is written, and a
+ * session that is written and invalidated concurrently is never written back after its deletion.
+ */
+class WriteBehindQueue {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  private final ConcurrentMap<String, Val> pending = new ConcurrentHashMap<>();
+  private final Striped<Lock> locks = Striped.lock(64);
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+  private final BiConsumer<String, Val> writer;
+  private final int batchSize;
+  private final int capacity;
+  @Nullable private volatile Executor executor;
+
+  /**
+   * @param writer writes a session to disk.
+   * @param batchSize number of pending sessions that triggers a flush on the executor.
+   * @param capacity maximum number of pending sessions. Sessions of other keys are written by the
+   *     caller while the queue is full.
+   */
+  WriteBehindQueue(BiConsumer<String, Val> writer, int batchSize, int capacity) {
+    this.writer = writer;
+    this.batchSize = batchSize;
+    this.capacity = capacity;
+  }
+
+  /** Runs flushes triggered by the batch size on {@code executor}, {@code null} to stop. */
+  void setExecutor(@Nullable Executor executor) {
+    this.executor = executor;
+  }
+
+  void put(String key, Val val) {
+    if (pending.size() >= capacity && !pending.containsKey(key)) {
+      Lock lock = locks.get(key);
+      lock.lock();
+      try {
+        writer.accept(key, val);
+      } finally {
+        lock.unlock();
+      }
+      return;
+    }
+    pending.put(key, val);
+    if (pending.size() >= batchSize) {
+      requestFlush();
+    }
+  }
+
+  /** Returns the session put for {@code key} that is not written yet. */
+  @Nullable
+  Val get(String key) {
+    return pending.get(key);
+  }
+
+  /** Returns the keys of the sessions put that are not written yet. */
+  ImmutableSet<String> keys() {
+    return ImmutableSet.copyOf(pending.keySet());
+  }
+
+  /**
+   * Drops the pending session of {@code key} and runs {@code delete} before it can be written
+   * concurrently.
+   */
+  void invalidate(String key, Runnable delete) {
+    Lock lock = locks.get(key);
+    lock.lock();
+    try {
+      pending.remove(key);
+      delete.run();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void invalidateAll() {
+    pending.clear();
+  }
+
+  int size() {
+    return pending.size();
+  }
+
+  /**
+   * Writes all pending sessions.
+   *
+   * @return number of sessions written.
+   */
+  int flush() {
+    flushRequested.set(false);
+    int written = 0;
+    for (String key : pending.keySet()) {
+      if (write(key)) {
+        written++;
+      }
+    }
+    return written;
+  }
+
+  private boolean write(String key) {
+    Lock lock = locks.get(key);
+    lock.lock();
+    try {
+      Val val = pending.get(key);
+      if (val == null) {
+        return false;
+      }
+      try {
+        writer.accept(key, val);
+      } finally {
+        // A session put meanwhile stays pending.
+        pending.remove(key, val);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void requestFlush() {
+    Executor e = executor;
+    if (e != null && flushRequested.compareAndSet(false, true)) {
+      try {
+        e.execute(this::flush);
+      } catch (RejectedExecutionException ex) {
+        flushRequested.set(false);
+        log.atFine().withCause(ex).log("Write-behind executor is shut down");
+      }
+    }
+  }
+}
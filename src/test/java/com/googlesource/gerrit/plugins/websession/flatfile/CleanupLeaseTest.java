@@ -0,0 +1,152 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.gerrit.server.config.PluginConfig;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Config;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CleanupLeaseTest {
+  private static final String PLUGIN_NAME = "websession-flatfile";
+  private static final long CLEANUP_INTERVAL = TimeUnit.HOURS.toMillis(24);
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Path dir;
+  private Configuration config;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = tempFolder.newFolder("websessions").toPath();
+    Config cfg = new Config();
+    cfg.setBoolean("plugin", PLUGIN_NAME, "cleanupLease", true);
+    config = new Configuration(PluginConfig.createFromGerritConfig(PLUGIN_NAME, cfg));
+  }
+
+  @Test
+  public void otherMastersSkipCleanupUntilNextIntervalTest() throws Exception {
+    CleanupLease master1 = newLease();
+    CleanupLease master2 = newLease();
+
+    assertThat(master1.tryAcquire()).isTrue();
+    assertThat(master2.tryAcquire()).isFalse();
+    master1.release(true);
+    assertThat(master2.tryAcquire()).isFalse();
+    assertThat(master1.tryAcquire()).isFalse();
+
+    // The next cleanup is due.
+    expireLease();
+    assertThat(master2.tryAcquire()).isTrue();
+    assertThat(master1.tryAcquire()).isFalse();
+  }
+
+  @Test
+  public void leaseOfCrashedMasterIsTakenOverTest() throws Exception {
+    CleanupLease crashed = newLease();
+    CleanupLease master2 = newLease();
+
+    assertThat(crashed.tryAcquire()).isTrue();
+    assertThat(master2.tryAcquire()).isFalse();
+    expireLease();
+    assertThat(master2.tryAcquire()).isTrue();
+
+    // Does not release the lease taken over.
+    crashed.release(false);
+    assertThat(newLease().tryAcquire()).isFalse();
+    assertThat(Arrays.asList(dir.toFile().list())).containsExactly(CleanupLease.FILE_NAME);
+  }
+
+  @Test
+  public void failedCleanupIsRetriedByAnyMasterTest() throws Exception {
+    CleanupLease master1 = newLease();
+    assertThat(master1.tryAcquire()).isTrue();
+    master1.release(false);
+    assertThat(newLease().tryAcquire()).isTrue();
+  }
+
+  @Test
+  public void renewalFailsOnceLeaseIsTakenOverTest() throws Exception {
+    config = newConfig("cleanupLeaseTimeout", "1ms");
+    CleanupLease master1 = newLease();
+    CleanupLease master2 = newLease();
+
+    assertThat(master1.tryAcquire()).isTrue();
+    Thread.sleep(5);
+    assertThat(master1.renew()).isTrue();
+    Thread.sleep(5);
+    assertThat(master2.tryAcquire()).isTrue();
+    long expiresAt = leaseExpiresAt();
+    byte[] holder = Files.readAllBytes(dir.resolve(CleanupLease.FILE_NAME));
+
+    // Neither renewing nor releasing touches the lease of the other master.
+    assertThat(master1.renew()).isFalse();
+    master1.release(true);
+    assertThat(leaseExpiresAt()).isEqualTo(expiresAt);
+    assertThat(Files.readAllBytes(dir.resolve(CleanupLease.FILE_NAME))).isEqualTo(holder);
+    assertThat(Arrays.asList(dir.toFile().list())).containsExactly(CleanupLease.FILE_NAME);
+    assertThat(master2.renew()).isTrue();
+  }
+
+  @Test
+  public void leaseIsRenewedWhileCleanupRunsTest() throws Exception {
+    config = newConfig("cleanupLeaseTimeout", "1s");
+    CleanupLease master1 = newLease();
+    assertThat(master1.tryAcquire()).isTrue();
+    long expiresAt = leaseExpiresAt();
+
+    Thread.sleep(150);
+    assertThat(master1.renew()).isTrue();
+    assertThat(leaseExpiresAt()).isGreaterThan(expiresAt);
+  }
+
+  @Test
+  public void everyMasterCleansUpWithoutLeaseTest() throws Exception {
+    config = new Configuration(PluginConfig.createFromGerritConfig(PLUGIN_NAME, new Config()));
+    assertThat(newLease().tryAcquire()).isTrue();
+    assertThat(newLease().tryAcquire()).isTrue();
+    assertThat(Files.exists(dir.resolve(CleanupLease.FILE_NAME))).isFalse();
+  }
+
+  private static Configuration newConfig(String name, String value) {
+    Config cfg = new Config();
+    cfg.setBoolean("plugin", PLUGIN_NAME, "cleanupLease", true);
+    cfg.setString("plugin", PLUGIN_NAME, name, value);
+    return new Configuration(PluginConfig.createFromGerritConfig(PLUGIN_NAME, cfg));
+  }
+
+  private CleanupLease newLease() {
+    return new CleanupLease(dir, config, CLEANUP_INTERVAL);
+  }
+
+  private long leaseExpiresAt() throws Exception {
+    return Files.getLastModifiedTime(dir.resolve(CleanupLease.FILE_NAME)).toMillis();
+  }
+
+  private void expireLease() throws Exception {
+    Files.setLastModifiedTime(
+        dir.resolve(CleanupLease.FILE_NAME),
+        FileTime.fromMillis(System.currentTimeMillis() - 1000));
+  }
+}
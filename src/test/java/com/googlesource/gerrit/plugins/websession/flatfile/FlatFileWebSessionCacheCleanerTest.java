@@ -15,11 +15,15 @@
 package com.googlesource.gerrit.plugins.websession.flatfile;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isA;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -51,8 +55,8 @@ public class FlatFileWebSessionCacheCleanerTest {
 
   @Before
   public void setUp() {
-    when(cleanupTaskProviderMock.get()).thenReturn(new CleanupTask(null, null));
-    when(workQueueMock.getDefaultQueue()).thenReturn(executorMock);
+    when(cleanupTaskProviderMock.get()).thenReturn(new CleanupTask(null, null, null, null));
+    when(workQueueMock.createQueue(anyInt(), anyString())).thenReturn(executorMock);
     doReturn(scheduledFutureMock)
         .when(executorMock)
         .scheduleAtFixedRate(isA(CleanupTask.class), anyLong(), anyLong(), isA(TimeUnit.class));
@@ -64,17 +68,34 @@ public class FlatFileWebSessionCacheCleanerTest {
   @Test
   public void testCleanupTaskRun() {
     FlatFileWebSessionCache cacheMock = mock(FlatFileWebSessionCache.class);
-    CleanupTask task = new CleanupTask(cacheMock, null);
+    CleanupLease leaseMock = mock(CleanupLease.class);
+    when(leaseMock.tryAcquire()).thenReturn(true);
+    CleanupTask task = new CleanupTask(cacheMock, leaseMock, SessionScanner.sequential(), null);
     int numberOfRuns = 5;
     for (int i = 0; i < numberOfRuns; i++) {
       task.run();
     }
     verify(cacheMock, times(numberOfRuns)).cleanUp();
+    verify(cacheMock, times(numberOfRuns)).deleteOrphans();
+    verify(leaseMock, times(numberOfRuns)).release(true);
+  }
+
+  @Test
+  public void testCleanupTaskRunWithoutLease() {
+    FlatFileWebSessionCache cacheMock = mock(FlatFileWebSessionCache.class);
+    CleanupLease leaseMock = mock(CleanupLease.class);
+    when(leaseMock.tryAcquire()).thenReturn(false);
+    CleanupTask task = new CleanupTask(cacheMock, leaseMock, SessionScanner.sequential(), null);
+    task.run();
+    verify(cacheMock, times(1)).cleanUpLocal();
+    verify(cacheMock, never()).cleanUp();
+    verify(cacheMock, never()).deleteOrphans();
+    verify(leaseMock, never()).release(anyBoolean());
   }
 
   @Test
   public void testCleanupTaskToString() {
-    CleanupTask task = new CleanupTask(null, SOME_PLUGIN_NAME);
+    CleanupTask task = new CleanupTask(null, null, null, SOME_PLUGIN_NAME);
     assertThat(task.toString())
         .isEqualTo(String.format("[%s] Clean up expired file based websessions", SOME_PLUGIN_NAME));
   }
@@ -94,6 +115,13 @@ public class FlatFileWebSessionCacheCleanerTest {
     verify(scheduledFutureMock, times(1)).cancel(true);
   }
 
+  @Test
+  public void testCleanupExecutorIsShutDownOnStop() {
+    cleaner.start();
+    cleaner.stop();
+    verify(executorMock, times(1)).shutdownNow();
+  }
+
   @Test
   public void testCleanupTaskIsCancelledOnlyOnce() {
     cleaner.start();
@@ -15,31 +15,55 @@
 package com.googlesource.gerrit.plugins.websession.flatfile;
 
 import static com.google.common.truth.Truth.assertThat;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.EXISTING_KEY;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.newMetrics;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.withExpiresAt;
+import static org.junit.Assert.assertThrows;
 
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.gerrit.entities.Account;
 import com.google.gerrit.httpd.WebSessionManager;
 import com.google.gerrit.httpd.WebSessionManager.Val;
 import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.config.PluginConfig;
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.googlesource.gerrit.plugins.websession.flatfile.FlatFileWebSessionCache.TimeMachine;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectStreamConstants;
+import java.nio.ByteBuffer;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.eclipse.jgit.lib.Config;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -47,10 +71,13 @@ import org.junit.rules.TemporaryFolder;
 
 public class FlatFileWebSessionCacheTest {
 
-  private static final String EXISTING_KEY = "aSceprtBc02YaMY573T5jfW64ZudJfPbDq";
   private static final String EMPTY_KEY = "aOc2prqlZRpSO3LpauGO5efCLs1L9r9KkG";
   private static final String INVALID_KEY = "aOFdpHriBM6dN055M13PjDdTZagl5r5aSG";
   private static final String NEW_KEY = "abcde12345";
+  private static final String PLUGIN_NAME = "websession-flatfile";
+  /** Lookups treat expired sessions as missing, the session of EXISTING_KEY expired in 2015. */
+  private static final Instant BEFORE_EXISTING_KEY_EXPIRY =
+      Instant.ofEpochMilli(1434719666123L).minus(1, ChronoUnit.DAYS);
 
   @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
 
@@ -72,7 +99,13 @@ public class FlatFileWebSessionCacheTest {
   @Before
   public void createFlatFileWebSessionCache() throws Exception {
     websessionDir = tempFolder.newFolder("websessions").toPath();
-    cache = new FlatFileWebSessionCache(websessionDir);
+    cache = newCache(new Config());
+    TimeMachine.useFixedClockAt(BEFORE_EXISTING_KEY_EXPIRY);
+  }
+
+  @After
+  public void resetClock() {
+    TimeMachine.useSystemDefaultZoneClock();
   }
 
   @Test
@@ -87,18 +120,91 @@ public class FlatFileWebSessionCacheTest {
     assertThat(cache.asMap()).containsKey(EXISTING_KEY);
   }
 
+  @Test
+  public void asMapReadsThroughTest() throws Exception {
+    Map<String, Val> map = cache.asMap();
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = map.get(EXISTING_KEY);
+    assertThat(val).isNotNull();
+
+    map.put(NEW_KEY, val);
+    assertThat(cache.getIfPresent(NEW_KEY)).isNotNull();
+    assertThat(map.keySet()).containsExactly(EXISTING_KEY, NEW_KEY);
+
+    assertThat(map.remove(EXISTING_KEY)).isNotNull();
+    assertThat(Files.exists(websessionDir.resolve(EXISTING_KEY))).isFalse();
+    assertThat(map.containsKey(EXISTING_KEY)).isFalse();
+  }
+
+  @Test
+  public void asMapIteratorRemoveTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    loadKeyToCacheDir(INVALID_KEY);
+    Iterator<Map.Entry<String, Val>> entries = cache.asMap().entrySet().iterator();
+    assertThat(entries.next().getKey()).isEqualTo(EXISTING_KEY);
+    entries.remove();
+    assertThat(entries.hasNext()).isFalse();
+    assertThat(cache.getIfPresent(EXISTING_KEY)).isNull();
+  }
+
+  @Test
+  public void asMapAgreesWithGetIfPresentTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = cache.getIfPresent(EXISTING_KEY);
+    Config cfg = new Config();
+    cfg.setBoolean("plugin", PLUGIN_NAME, "writeBehind", true);
+    cache = newCache(cfg);
+
+    cache.put(NEW_KEY, withExpiresAt(val, val.getExpiresAt() + TimeUnit.DAYS.toMillis(1)));
+    assertThat(Files.exists(websessionDir.resolve(NEW_KEY))).isFalse();
+    // Not counted by size() until it is written.
+    assertThat(new ArrayList<>(cache.asMap().keySet())).containsExactly(NEW_KEY, EXISTING_KEY);
+
+    TimeMachine.useFixedClockAt(Instant.ofEpochMilli(val.getExpiresAt()).plusSeconds(1));
+    assertThat(cache.getIfPresent(EXISTING_KEY)).isNull();
+    assertThat(new ArrayList<>(cache.asMap().keySet())).containsExactly(NEW_KEY);
+  }
+
   @Test
   public void constructorCreateDir() throws IOException {
     assertThat(websessionDir.toFile().delete()).isTrue();
-    cache = new FlatFileWebSessionCache(websessionDir);
+    cache = newCache(new Config());
     assertThat(websessionDir.toFile().exists()).isTrue();
   }
 
   @Test
   public void cleanUpTest() throws Exception {
     loadKeyToCacheDir(EXISTING_KEY);
+    try {
+      Val val = cache.getIfPresent(EXISTING_KEY);
+      // Store the session the way the plugin writes it, an unchanged session is not rewritten.
+      cache.invalidate(EXISTING_KEY);
+      cache.put(EXISTING_KEY, val);
+      long existingKeyExpireAt = val.getExpiresAt();
+      assertThat(Files.getLastModifiedTime(websessionDir.resolve(EXISTING_KEY)).toMillis())
+          .isEqualTo(existingKeyExpireAt);
+      TimeMachine.useFixedClockAt(
+          Instant.ofEpochMilli(existingKeyExpireAt).minus(1, ChronoUnit.HOURS));
+      cache.cleanUp();
+      assertThat(isDirEmpty(websessionDir)).isFalse();
+
+      TimeMachine.useFixedClockAt(
+          Instant.ofEpochMilli(existingKeyExpireAt).plus(1, ChronoUnit.HOURS));
+      cache.cleanUp();
+      assertThat(isDirEmpty(websessionDir)).isTrue();
+    } finally {
+      TimeMachine.useSystemDefaultZoneClock();
+    }
+  }
+
+  @Test
+  public void cleanUpLegacyFileTest() throws Exception {
+    Path path = loadKeyToCacheDir(EXISTING_KEY);
     try {
       long existingKeyExpireAt = cache.getIfPresent(EXISTING_KEY).getExpiresAt();
+      // Written by an earlier version, the modification time is unrelated to the expiry.
+      Files.setLastModifiedTime(
+          path, FileTime.fromMillis(existingKeyExpireAt - TimeUnit.HOURS.toMillis(2)));
       TimeMachine.useFixedClockAt(
           Instant.ofEpochMilli(existingKeyExpireAt).minus(1, ChronoUnit.HOURS));
       cache.cleanUp();
@@ -113,6 +219,63 @@ public class FlatFileWebSessionCacheTest {
     }
   }
 
+  @Test
+  public void cleanUpExpiryBucketsTest() throws Exception {
+    Config cfg = new Config();
+    cfg.setBoolean("plugin", PLUGIN_NAME, "expiryBuckets", true);
+    cache = newCache(cfg);
+    loadKeyToCacheDir(EXISTING_KEY);
+    try {
+      Val val = cache.getIfPresent(EXISTING_KEY);
+      cache.put(EXISTING_KEY, val);
+      long expiresAt = val.getExpiresAt();
+      TimeMachine.useFixedClockAt(Instant.ofEpochMilli(expiresAt).minus(2, ChronoUnit.HOURS));
+      // The first run indexes the existing sessions.
+      cache.cleanUp();
+      assertThat(Files.exists(websessionDir.resolve(ExpiryBuckets.DIRECTORY))).isTrue();
+      cache.put(NEW_KEY, val);
+      cache.cleanUp();
+      assertThat(cache.size()).isEqualTo(2);
+
+      TimeMachine.useFixedClockAt(Instant.ofEpochMilli(expiresAt).plus(1, ChronoUnit.HOURS));
+      cache.cleanUp();
+      assertThat(cache.size()).isEqualTo(0);
+      assertThat(Files.exists(websessionDir.resolve(EXISTING_KEY))).isFalse();
+      assertThat(Files.exists(websessionDir.resolve(NEW_KEY))).isFalse();
+    } finally {
+      TimeMachine.useSystemDefaultZoneClock();
+    }
+  }
+
+  @Test
+  public void cleanUpExpiryBucketsSubtractsDeletedFromApproximateSizeTest() throws Exception {
+    Config cfg = new Config();
+    cfg.setBoolean("plugin", PLUGIN_NAME, "expiryBuckets", true);
+    cfg.setString("plugin", PLUGIN_NAME, "sizeMode", "approximate");
+    cache = newCache(cfg);
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = cache.getIfPresent(EXISTING_KEY);
+    cache.put(EXISTING_KEY, val);
+    long expiresAt = val.getExpiresAt();
+    cache.put(NEW_KEY, withExpiresAt(val, expiresAt + TimeUnit.DAYS.toMillis(1)));
+    // The first run indexes and counts the existing sessions.
+    cache.cleanUp();
+    assertThat(cache.size()).isEqualTo(2);
+
+    // Stored by another master, not listed by the following runs.
+    loadKeysToCacheDir(2);
+    TimeMachine.useFixedClockAt(Instant.ofEpochMilli(expiresAt).plus(1, ChronoUnit.HOURS));
+    cache.cleanUp();
+    assertThat(Files.exists(websessionDir.resolve(EXISTING_KEY))).isFalse();
+    assertThat(cache.size()).isEqualTo(1);
+
+    // Reconciled by listing the directory every few runs.
+    for (int i = 1; i < FlatFileSessionStore.RECOUNT_CLEANUPS; i++) {
+      cache.cleanUp();
+    }
+    assertThat(cache.size()).isEqualTo(3);
+  }
+
   @Test
   public void cleanUpWithErrorsWhileListingFilesTest() throws Exception {
     tempFolder.delete();
@@ -120,9 +283,39 @@ public class FlatFileWebSessionCacheTest {
     assertThat(cache.size()).isEqualTo(0);
   }
 
+  @Test
+  public void getIfPresentExpiredTest() throws Exception {
+    Path path = loadKeyToCacheDir(EXISTING_KEY);
+    long expiresAt = cache.getIfPresent(EXISTING_KEY).getExpiresAt();
+    TimeMachine.useFixedClockAt(Instant.ofEpochMilli(expiresAt).plus(1, ChronoUnit.HOURS));
+
+    assertThat(cache.getIfPresent(EXISTING_KEY)).isNull();
+    // Deleted in the background rather than by the lookup.
+    assertThat(Files.exists(path)).isTrue();
+    assertThat(cache.deleteExpiredSessions()).isEqualTo(1);
+    assertThat(Files.exists(path)).isFalse();
+    assertThat(cache.stats().evictionCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void getIfPresentExtendedAfterExpiryTest() throws Exception {
+    Path path = loadKeyToCacheDir(EXISTING_KEY);
+    Val val = cache.getIfPresent(EXISTING_KEY);
+    TimeMachine.useFixedClockAt(Instant.ofEpochMilli(val.getExpiresAt()).plus(1, ChronoUnit.HOURS));
+    assertThat(cache.getIfPresent(EXISTING_KEY)).isNull();
+
+    // Extended, e.g. by another master, before the expired session is deleted.
+    cache.put(EXISTING_KEY, futureVal(val));
+    assertThat(cache.deleteExpiredSessions()).isEqualTo(0);
+    assertThat(Files.exists(path)).isTrue();
+    assertThat(cache.getIfPresent(EXISTING_KEY)).isNotNull();
+  }
+
   @Test
   public void cleanUpWithErrorsWhileDeleteFileTest() throws Exception {
     loadKeyToCacheDir(EXISTING_KEY);
+    // The session has expired.
+    TimeMachine.useSystemDefaultZoneClock();
     try {
       websessionDir.toFile().setWritable(false);
       cache.cleanUp();
@@ -132,6 +325,34 @@ public class FlatFileWebSessionCacheTest {
     }
   }
 
+  @Test
+  public void putStagesTemporaryFilesTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    cache.put(NEW_KEY, cache.getIfPresent(EXISTING_KEY));
+    Path staging = websessionDir.resolve(FlatFileSessionStore.STAGING);
+    assertThat(Files.isDirectory(staging)).isTrue();
+    assertThat(isDirEmpty(staging)).isTrue();
+  }
+
+  @Test
+  public void deleteOrphansTest() throws Exception {
+    Path staging = Files.createDirectory(websessionDir.resolve(FlatFileSessionStore.STAGING));
+    Path orphan = Files.createFile(staging.resolve("orphan.tmp"));
+    // Left by an earlier version of the plugin.
+    Path legacyOrphan = Files.createTempFile(websessionDir, "legacy", null);
+    assertThat(cache.size()).isEqualTo(0);
+
+    cache.deleteOrphans();
+    assertThat(Files.exists(orphan)).isTrue();
+    assertThat(Files.exists(legacyOrphan)).isTrue();
+
+    Path inProgress = Files.createFile(staging.resolve("in-progress.tmp"));
+    cache.deleteOrphans();
+    assertThat(Files.exists(orphan)).isFalse();
+    assertThat(Files.exists(legacyOrphan)).isFalse();
+    assertThat(Files.exists(inProgress)).isTrue();
+  }
+
   @Test
   public void getIfPresentEmptyKeyTest() throws Exception {
     assertThat(cache.getIfPresent(EMPTY_KEY)).isNull();
@@ -155,6 +376,42 @@ public class FlatFileWebSessionCacheTest {
     assertThat(cache.getIfPresent(EXISTING_KEY)).isNotNull();
   }
 
+  @Test
+  public void getIfPresentServedFromMemoryTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = cache.getIfPresent(EXISTING_KEY);
+    assertThat(cache.getIfPresent(EXISTING_KEY)).isSameInstanceAs(val);
+  }
+
+  @Test
+  public void getIfPresentReloadsFileWrittenByOtherMasterTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = cache.getIfPresent(EXISTING_KEY);
+    FlatFileWebSessionCache otherMaster = newCache(new Config());
+    otherMaster.put(EXISTING_KEY, withExpiresAt(val, val.getExpiresAt() + 1));
+    Val reloaded = cache.getIfPresent(EXISTING_KEY);
+    assertThat(reloaded).isNotNull();
+    assertThat(reloaded).isNotSameInstanceAs(val);
+  }
+
+  @Test
+  public void getIfPresentFileDeletedByOtherMasterTest() throws Exception {
+    Path path = loadKeyToCacheDir(EXISTING_KEY);
+    assertThat(cache.getIfPresent(EXISTING_KEY)).isNotNull();
+    Files.delete(path);
+    assertThat(cache.getIfPresent(EXISTING_KEY)).isNull();
+  }
+
+  @Test
+  public void getIfPresentMemoryCacheDisabledTest() throws Exception {
+    Config cfg = new Config();
+    cfg.setInt("plugin", PLUGIN_NAME, "memoryCacheSize", 0);
+    cache = newCache(cfg);
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = cache.getIfPresent(EXISTING_KEY);
+    assertThat(cache.getIfPresent(EXISTING_KEY)).isNotSameInstanceAs(val);
+  }
+
   @Test
   public void getAllPresentTest() throws Exception {
     loadKeyToCacheDir(EMPTY_KEY);
@@ -165,6 +422,43 @@ public class FlatFileWebSessionCacheTest {
     assertThat(cache.getAllPresent(keys)).containsKey(EXISTING_KEY);
   }
 
+  @Test
+  public void getAllPresentDuplicateKeysTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    List<String> keys = ImmutableList.of(EXISTING_KEY, NEW_KEY, EXISTING_KEY);
+    assertThat(cache.getAllPresent(keys).keySet()).containsExactly(EXISTING_KEY);
+  }
+
+  @Test
+  public void bulkOperationsConcurrentTest() throws Exception {
+    Config cfg = new Config();
+    cfg.setInt("plugin", PLUGIN_NAME, "bulkThreads", 4);
+    cache = newCache(cfg);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    cache.setBulkExecutor(executor);
+    try {
+      loadKeyToCacheDir(EXISTING_KEY);
+      Val val = cache.getIfPresent(EXISTING_KEY);
+      Map<String, Val> sessions = new LinkedHashMap<>();
+      for (int i = 0; i < 20; i++) {
+        sessions.put(NEW_KEY + i, val);
+      }
+      cache.putAll(sessions);
+      assertThat(cache.size()).isEqualTo(21);
+
+      List<String> keys = new ArrayList<>(sessions.keySet());
+      keys.add(INVALID_KEY);
+      assertThat(cache.getAllPresent(keys).keySet())
+          .containsExactlyElementsIn(sessions.keySet())
+          .inOrder();
+
+      cache.invalidateAll(sessions.keySet());
+      assertThat(cache.size()).isEqualTo(1);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
   @Test
   public void getTest() throws Exception {
     class ValueLoader implements Callable<Val> {
@@ -190,6 +484,160 @@ public class FlatFileWebSessionCacheTest {
     assertThat(cache.get(EXISTING_KEY, new ValueLoader())).isNull();
   }
 
+  @Test
+  public void getCoalescesConcurrentLoadsTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = cache.getIfPresent(EXISTING_KEY);
+    AtomicInteger loads = new AtomicInteger();
+    CountDownLatch loading = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Callable<Val> loader =
+        () -> {
+          loads.incrementAndGet();
+          loading.countDown();
+          release.await();
+          return val;
+        };
+    FutureTask<Val> first = new FutureTask<>(() -> cache.get(NEW_KEY, loader));
+    new Thread(first).start();
+    loading.await();
+    List<FutureTask<Val>> others = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      FutureTask<Val> other = new FutureTask<>(() -> cache.get(NEW_KEY, loader));
+      others.add(other);
+      threads.add(new Thread(other));
+    }
+    threads.forEach(Thread::start);
+    // Wait for the other requests to block on the load in progress.
+    for (Thread thread : threads) {
+      while (thread.getState() != Thread.State.WAITING) {
+        Thread.sleep(1);
+      }
+    }
+    release.countDown();
+
+    assertThat(first.get()).isSameInstanceAs(val);
+    for (FutureTask<Val> other : others) {
+      assertThat(other.get()).isSameInstanceAs(val);
+    }
+    assertThat(loads.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void getRecursiveLoadFailsInsteadOfWaitingTest() throws Exception {
+    Callable<Val> loader = () -> cache.get(NEW_KEY, () -> null);
+    UncheckedExecutionException thrown =
+        assertThrows(UncheckedExecutionException.class, () -> cache.get(NEW_KEY, loader));
+    assertThat(thrown).hasCauseThat().isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  public void getRethrowsLoaderFailureWithGuavaTypesTest() throws Exception {
+    RuntimeException failure = new IllegalArgumentException();
+    CountDownLatch loading = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Callable<Val> loader =
+        () -> {
+          loading.countDown();
+          release.await();
+          throw failure;
+        };
+    FutureTask<Val> first = new FutureTask<>(() -> cache.get(NEW_KEY, loader));
+    new Thread(first).start();
+    loading.await();
+    FutureTask<Val> other = new FutureTask<>(() -> cache.get(NEW_KEY, loader));
+    Thread thread = new Thread(other);
+    thread.start();
+    while (thread.getState() != Thread.State.WAITING) {
+      Thread.sleep(1);
+    }
+    release.countDown();
+
+    for (FutureTask<Val> task : ImmutableList.of(first, other)) {
+      ExecutionException thrown = assertThrows(ExecutionException.class, task::get);
+      assertThat(thrown).hasCauseThat().isInstanceOf(UncheckedExecutionException.class);
+      assertThat(thrown.getCause()).hasCauseThat().isSameInstanceAs(failure);
+    }
+    Callable<Val> failingLoader =
+        () -> {
+          throw new AssertionError();
+        };
+    assertThrows(ExecutionError.class, () -> cache.get(NEW_KEY, failingLoader));
+  }
+
+  @Test
+  public void getIfPresentNegativeCacheTest() throws Exception {
+    Config cfg = new Config();
+    cfg.setInt("plugin", PLUGIN_NAME, "negativeCacheSize", 100);
+    cache = newCache(cfg);
+    assertThat(cache.getIfPresent(EXISTING_KEY)).isNull();
+
+    // Written by another master: still missing until the entry expires.
+    loadKeyToCacheDir(EXISTING_KEY);
+    assertThat(cache.getIfPresent(EXISTING_KEY)).isNull();
+    assertThat(newCache(cfg).getIfPresent(EXISTING_KEY)).isNotNull();
+  }
+
+  @Test
+  public void putInvalidatesNegativeCacheTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = cache.getIfPresent(EXISTING_KEY);
+    Config cfg = new Config();
+    cfg.setInt("plugin", PLUGIN_NAME, "negativeCacheSize", 100);
+    cache = newCache(cfg);
+    assertThat(cache.getIfPresent(NEW_KEY)).isNull();
+
+    cache.put(NEW_KEY, val);
+    assertThat(cache.getIfPresent(NEW_KEY)).isNotNull();
+  }
+
+  @Test
+  public void getIfPresentWatchedServesMemoryUntilStoreChangeTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = cache.getIfPresent(EXISTING_KEY);
+    cache.put(NEW_KEY, val);
+    cache.setWatched(true);
+
+    // Rewritten by another master.
+    Val extended = withExpiresAt(val, val.getExpiresAt() + TimeUnit.HOURS.toMillis(1));
+    newCache(new Config()).put(NEW_KEY, extended);
+    assertThat(cache.getIfPresent(NEW_KEY).getExpiresAt()).isEqualTo(val.getExpiresAt());
+
+    cache.onStoreChange(NEW_KEY);
+    assertThat(cache.getIfPresent(NEW_KEY).getExpiresAt()).isEqualTo(extended.getExpiresAt());
+  }
+
+  @Test
+  public void onStoreChangeKeepsSessionWrittenByThisMasterTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = cache.getIfPresent(EXISTING_KEY);
+    cache.put(NEW_KEY, val);
+    cache.setWatched(true);
+
+    cache.onStoreChange(NEW_KEY);
+    Files.delete(websessionDir.resolve(NEW_KEY));
+    assertThat(cache.getIfPresent(NEW_KEY)).isSameInstanceAs(val);
+
+    cache.onStoreChange(NEW_KEY);
+    assertThat(cache.getIfPresent(NEW_KEY)).isNull();
+  }
+
+  @Test
+  public void onStoreChangeInvalidatesNegativeCacheTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = cache.getIfPresent(EXISTING_KEY);
+    Config cfg = new Config();
+    cfg.setInt("plugin", PLUGIN_NAME, "negativeCacheSize", 100);
+    cache = newCache(cfg);
+    assertThat(cache.getIfPresent(NEW_KEY)).isNull();
+
+    newCache(new Config()).put(NEW_KEY, val);
+    assertThat(cache.getIfPresent(NEW_KEY)).isNull();
+    cache.onStoreChange(NEW_KEY);
+    assertThat(cache.getIfPresent(NEW_KEY)).isNotNull();
+  }
+
   @Test
   public void invalidateAllCollectionTest() throws Exception {
     int numberOfKeys = 15;
@@ -238,6 +686,207 @@ public class FlatFileWebSessionCacheTest {
     assertThat(cache.getIfPresent(NEW_KEY)).isNotNull();
   }
 
+  @Test
+  public void putWritesCompactFormatTest() throws Exception {
+    cache = newCache(compactConfig());
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = cache.getIfPresent(EXISTING_KEY);
+    cache.put(NEW_KEY, val);
+    assertThat(SessionCodec.isCompact(Files.readAllBytes(websessionDir.resolve(NEW_KEY))))
+        .isTrue();
+
+    Val reloaded = newCache(new Config()).getIfPresent(NEW_KEY);
+    SessionCodec codec = new SessionCodec(true);
+    assertThat(codec.encode(reloaded)).isEqualTo(codec.encode(val));
+    assertThat(Files.size(websessionDir.resolve(NEW_KEY)))
+        .isLessThan(Files.size(websessionDir.resolve(EXISTING_KEY)));
+  }
+
+  @Test
+  public void putUnchangedSessionSkipsWriteTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = cache.getIfPresent(EXISTING_KEY);
+    cache.put(NEW_KEY, val);
+    Object fileKey = fileKey(websessionDir.resolve(NEW_KEY));
+
+    cache.put(NEW_KEY, val);
+    assertThat(fileKey(websessionDir.resolve(NEW_KEY))).isEqualTo(fileKey);
+
+    cache.put(NEW_KEY, withExpiresAt(val, val.getExpiresAt() - 1));
+    assertThat(fileKey(websessionDir.resolve(NEW_KEY))).isNotEqualTo(fileKey);
+  }
+
+  @Test
+  public void putExtendedSessionWritesNewFileTest() throws Exception {
+    cache = newCache(compactConfig());
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = cache.getIfPresent(EXISTING_KEY);
+    cache.put(NEW_KEY, val);
+    Path path = websessionDir.resolve(NEW_KEY);
+    Object fileKey = fileKey(path);
+
+    long expiresAt = val.getExpiresAt() + TimeUnit.HOURS.toMillis(1);
+    Val extended = withExpiresAt(val, expiresAt);
+    cache.put(NEW_KEY, extended);
+    assertThat(fileKey(path)).isNotEqualTo(fileKey);
+    assertThat(Files.getLastModifiedTime(path).toMillis()).isEqualTo(expiresAt);
+
+    SessionCodec codec = new SessionCodec(true);
+    Val reloaded = newCache(new Config()).getIfPresent(NEW_KEY);
+    assertThat(codec.encode(reloaded)).isEqualTo(codec.encode(extended));
+  }
+
+  @Test
+  public void putExtendedSessionRacingWithOtherMasterNeverMixesFilesTest() throws Exception {
+    cache = newCache(compactConfig());
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = futureVal(cache.getIfPresent(EXISTING_KEY));
+    Val otherVal = withAccountId(val, 1000001);
+    cache.put(NEW_KEY, val);
+    FlatFileSessionStore otherMaster = newStore(compactConfig());
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> replacing =
+          executor.submit(
+              () -> {
+                for (int i = 0; i < 200; i++) {
+                  otherMaster.write(NEW_KEY, otherVal, null);
+                }
+                return null;
+              });
+      for (int i = 1; i <= 200; i++) {
+        cache.put(NEW_KEY, withExpiresAt(val, val.getExpiresAt() + i));
+      }
+      replacing.get();
+    } finally {
+      executor.shutdown();
+    }
+    assertConsistent(websessionDir.resolve(NEW_KEY));
+
+    otherMaster.write(NEW_KEY, otherVal, null);
+    Object otherFileKey = fileKey(websessionDir.resolve(NEW_KEY));
+    long expiresAt = val.getExpiresAt() + TimeUnit.HOURS.toMillis(1);
+    cache.put(NEW_KEY, withExpiresAt(val, expiresAt));
+    Path path = websessionDir.resolve(NEW_KEY);
+    assertThat(fileKey(path)).isNotEqualTo(otherFileKey);
+    assertConsistent(path);
+    Val reloaded = newCache(new Config()).getIfPresent(NEW_KEY);
+    assertThat(reloaded.getAccountId()).isEqualTo(val.getAccountId());
+    assertThat(reloaded.getExpiresAt()).isEqualTo(expiresAt);
+  }
+
+  @Test
+  public void putRacingWithMissedLookupIsNotHiddenByNegativeCacheTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = futureVal(cache.getIfPresent(EXISTING_KEY));
+    Config cfg = new Config();
+    cfg.setInt("plugin", PLUGIN_NAME, "negativeCacheSize", 100);
+    CountDownLatch missed = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicBoolean pause = new AtomicBoolean(true);
+    FlatFileSessionStore store =
+        new FlatFileSessionStore(
+            websessionDir,
+            new Configuration(PluginConfig.createFromGerritConfig(PLUGIN_NAME, cfg)),
+            SessionScanner.sequential(),
+            newMetrics()) {
+          @Override
+          public Object version(String key) {
+            Object version = super.version(key);
+            if (pause.getAndSet(false)) {
+              missed.countDown();
+              Uninterruptibles.awaitUninterruptibly(release);
+            }
+            return version;
+          }
+        };
+    cache =
+        new FlatFileWebSessionCache(
+            store,
+            new Configuration(PluginConfig.createFromGerritConfig(PLUGIN_NAME, cfg)),
+            newMetrics());
+
+    // The lookup misses the session, then the put completes before it marks the key missing.
+    FutureTask<Val> lookup = new FutureTask<>(() -> cache.getIfPresent(NEW_KEY));
+    new Thread(lookup).start();
+    missed.await();
+    cache.put(NEW_KEY, val);
+    release.countDown();
+    assertThat(lookup.get()).isNull();
+
+    assertThat(cache.getIfPresent(NEW_KEY)).isNotNull();
+  }
+
+  @Test
+  public void putWriteBehindTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = cache.getIfPresent(EXISTING_KEY);
+    Config cfg = new Config();
+    cfg.setBoolean("plugin", PLUGIN_NAME, "writeBehind", true);
+    cache = newCache(cfg);
+
+    cache.put(NEW_KEY, val);
+    cache.put(NEW_KEY, val);
+    assertThat(Files.exists(websessionDir.resolve(NEW_KEY))).isFalse();
+    assertThat(cache.getIfPresent(NEW_KEY)).isSameInstanceAs(val);
+
+    assertThat(cache.flushPendingWrites()).isEqualTo(1);
+    assertThat(Files.exists(websessionDir.resolve(NEW_KEY))).isTrue();
+    assertThat(cache.flushPendingWrites()).isEqualTo(0);
+  }
+
+  @Test
+  public void invalidateCancelsPendingWriteTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = cache.getIfPresent(EXISTING_KEY);
+    Config cfg = new Config();
+    cfg.setBoolean("plugin", PLUGIN_NAME, "writeBehind", true);
+    cache = newCache(cfg);
+
+    cache.put(NEW_KEY, val);
+    cache.invalidate(NEW_KEY);
+    assertThat(cache.getIfPresent(NEW_KEY)).isNull();
+    assertThat(cache.flushPendingWrites()).isEqualTo(0);
+    assertThat(Files.exists(websessionDir.resolve(NEW_KEY))).isFalse();
+  }
+
+  @Test
+  public void putWriteBehindQueueFullWritesDirectlyTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = cache.getIfPresent(EXISTING_KEY);
+    Config cfg = new Config();
+    cfg.setBoolean("plugin", PLUGIN_NAME, "writeBehind", true);
+    cfg.setInt("plugin", PLUGIN_NAME, "writeBehindQueueSize", 1);
+    cache = newCache(cfg);
+
+    cache.put(NEW_KEY, val);
+    cache.put(EMPTY_KEY, val);
+    assertThat(Files.exists(websessionDir.resolve(NEW_KEY))).isFalse();
+    assertThat(Files.exists(websessionDir.resolve(EMPTY_KEY))).isTrue();
+  }
+
+  @Test
+  public void putWritesJavaSerializationByDefaultTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    cache.put(NEW_KEY, cache.getIfPresent(EXISTING_KEY));
+    byte[] data = Files.readAllBytes(websessionDir.resolve(NEW_KEY));
+    assertThat(SessionCodec.isCompact(data)).isFalse();
+    assertThat(ByteBuffer.wrap(data).getShort()).isEqualTo(ObjectStreamConstants.STREAM_MAGIC);
+  }
+
+  @Test
+  public void putWritesJavaSerializationWhenCompactFormatDisabledTest() throws Exception {
+    Config cfg = new Config();
+    cfg.setBoolean("plugin", PLUGIN_NAME, "compactFormat", false);
+    cache = newCache(cfg);
+    loadKeyToCacheDir(EXISTING_KEY);
+    cache.put(NEW_KEY, cache.getIfPresent(EXISTING_KEY));
+    byte[] data = Files.readAllBytes(websessionDir.resolve(NEW_KEY));
+    assertThat(SessionCodec.isCompact(data)).isFalse();
+    assertThat(ByteBuffer.wrap(data).getShort()).isEqualTo(ObjectStreamConstants.STREAM_MAGIC);
+    assertThat(newCache(new Config()).getIfPresent(NEW_KEY)).isNotNull();
+  }
+
   @Test
   public void putAllTest() throws Exception {
     loadKeyToCacheDir(EXISTING_KEY);
@@ -256,6 +905,65 @@ public class FlatFileWebSessionCacheTest {
     assertThat(cache.getIfPresent(NEW_KEY)).isNull();
   }
 
+  @Test
+  public void shardedLayoutTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = cache.getIfPresent(EXISTING_KEY);
+    cache = newCache(shardedConfig());
+    cache.put(NEW_KEY, val);
+    assertThat(Files.exists(websessionDir.resolve(NEW_KEY))).isFalse();
+    assertThat(newCache(shardedConfig()).getIfPresent(NEW_KEY)).isNotNull();
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.asMap().keySet()).containsExactly(EXISTING_KEY, NEW_KEY);
+
+    cache.invalidateAll();
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void shardedLayoutMigrationTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    FlatFileSessionStore store = newStore(shardedConfig());
+    cache =
+        new FlatFileWebSessionCache(
+            store,
+            new Configuration(PluginConfig.createFromGerritConfig(PLUGIN_NAME, shardedConfig())),
+            newMetrics());
+    assertThat(cache.getIfPresent(EXISTING_KEY)).isNotNull();
+
+    assertThat(store.migrateLayout()).isEqualTo(1);
+    assertThat(Files.exists(websessionDir.resolve(EXISTING_KEY))).isFalse();
+    assertThat(cache.getIfPresent(EXISTING_KEY)).isNotNull();
+    assertThat(cache.size()).isEqualTo(1);
+
+    cache.invalidate(EXISTING_KEY);
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void flatFileStoredAfterMigrationIsFoundAndMigratedTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    FlatFileSessionStore store = newStore(shardedConfig());
+    assertThat(store.migrateLayout()).isEqualTo(1);
+
+    // Stored by a master not using the shards yet.
+    Val val = store.read(EXISTING_KEY);
+    long later = val.getExpiresAt() + TimeUnit.DAYS.toMillis(1);
+    newStore(new Config()).write(NEW_KEY, val, null);
+    newStore(new Config()).write(EXISTING_KEY, withExpiresAt(val, later), null);
+    assertThat(store.read(NEW_KEY)).isNotNull();
+
+    store.migrateLayout();
+    assertThat(Files.exists(websessionDir.resolve(NEW_KEY))).isFalse();
+    assertThat(Files.exists(websessionDir.resolve(EXISTING_KEY))).isFalse();
+    assertThat(store.read(NEW_KEY)).isNotNull();
+    // The copy expiring last is kept.
+    assertThat(store.read(EXISTING_KEY).getExpiresAt()).isEqualTo(later);
+    try (DirectoryStream<Path> claims = Files.newDirectoryStream(websessionDir, "*.migrating")) {
+      assertThat(claims.iterator().hasNext()).isFalse();
+    }
+  }
+
   @Test
   public void sizeTest() throws Exception {
     int numberOfKeys = 10;
@@ -263,22 +971,183 @@ public class FlatFileWebSessionCacheTest {
     assertThat(cache.size()).isEqualTo(numberOfKeys);
   }
 
+  @Test
+  public void sizeApproximateTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val =
+        withExpiresAt(
+            cache.getIfPresent(EXISTING_KEY),
+            System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1));
+    Config cfg = new Config();
+    cfg.setString("plugin", PLUGIN_NAME, "sizeMode", "approximate");
+    cache = newCache(cfg);
+    loadKeysToCacheDir(4);
+    assertThat(cache.size()).isEqualTo(5);
+
+    // Stored by another master.
+    loadKeysToCacheDir(2);
+    assertThat(cache.size()).isEqualTo(5);
+
+    cache.put(NEW_KEY, val);
+    assertThat(cache.size()).isEqualTo(6);
+    cache.put(NEW_KEY, val);
+    assertThat(cache.size()).isEqualTo(6);
+    cache.invalidate(EXISTING_KEY);
+    assertThat(cache.size()).isEqualTo(5);
+
+    cache.cleanUp();
+    assertThat(cache.size()).isEqualTo(7);
+  }
+
+  @Test
+  public void invalidateAccountTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = futureVal(cache.getIfPresent(EXISTING_KEY));
+    cache.put(NEW_KEY, withAccountId(val, 1000001));
+
+    assertThat(cache.invalidateAccount(Account.id(1000000))).isEqualTo(1);
+    assertThat(cache.getIfPresent(EXISTING_KEY)).isNull();
+    assertThat(cache.getIfPresent(NEW_KEY)).isNotNull();
+  }
+
+  @Test
+  public void invalidateAccountIndexedTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = futureVal(cache.getIfPresent(EXISTING_KEY));
+    cache.put(EXISTING_KEY, val);
+    Config cfg = new Config();
+    cfg.setBoolean("plugin", PLUGIN_NAME, "accountIndex", true);
+    cache = newCache(cfg);
+    // The first cleanup indexes the existing sessions.
+    cache.cleanUp();
+    Path accountDir = websessionDir.resolve(AccountIndex.DIRECTORY).resolve("1000000");
+    assertThat(Files.exists(accountDir.resolve(EXISTING_KEY))).isTrue();
+
+    String otherKey = "fghij67890";
+    cache.put(NEW_KEY, val);
+    cache.put(otherKey, withAccountId(val, 1000001));
+    assertThat(Files.exists(accountDir.resolve(NEW_KEY))).isTrue();
+
+    assertThat(cache.invalidateAccount(Account.id(1000000))).isEqualTo(2);
+    assertThat(cache.getIfPresent(EXISTING_KEY)).isNull();
+    assertThat(cache.getIfPresent(NEW_KEY)).isNull();
+    assertThat(cache.getIfPresent(otherKey)).isNotNull();
+    assertThat(isDirEmpty(accountDir)).isTrue();
+  }
+
+  @Test
+  public void invalidateAccountIgnoresStaleIndexEntriesTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    Val val = futureVal(cache.getIfPresent(EXISTING_KEY));
+    Config cfg = new Config();
+    cfg.setBoolean("plugin", PLUGIN_NAME, "accountIndex", true);
+    cache = newCache(cfg);
+    cache.cleanUp();
+    cache.put(NEW_KEY, val);
+
+    // Rewritten by a master not maintaining the index.
+    newCache(new Config()).put(NEW_KEY, withAccountId(val, 1000001));
+    Path marker =
+        websessionDir.resolve(AccountIndex.DIRECTORY).resolve("1000000").resolve(NEW_KEY);
+    assertThat(Files.exists(marker)).isTrue();
+
+    assertThat(cache.invalidateAccount(Account.id(1000000))).isEqualTo(1);
+    assertThat(cache.getIfPresent(NEW_KEY)).isNotNull();
+    assertThat(Files.exists(marker)).isFalse();
+  }
+
   @Test
   public void statTest() throws Exception {
-    assertThat(cache.stats()).isNull();
+    assertThat(cache.stats().requestCount()).isEqualTo(0);
+
+    loadKeyToCacheDir(EXISTING_KEY);
+    assertThat(cache.getIfPresent(EXISTING_KEY)).isNotNull();
+    assertThat(cache.getIfPresent(EXISTING_KEY)).isNotNull();
+    assertThat(cache.getIfPresent(NEW_KEY)).isNull();
+
+    CacheStats stats = cache.stats();
+    assertThat(stats.hitCount()).isEqualTo(2);
+    assertThat(stats.missCount()).isEqualTo(1);
+    assertThat(stats.loadSuccessCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void statCountsCleanedUpSessionsAsEvictionsTest() throws Exception {
+    loadKeyToCacheDir(EXISTING_KEY);
+    try {
+      Val val = cache.getIfPresent(EXISTING_KEY);
+      cache.put(EXISTING_KEY, val);
+      TimeMachine.useFixedClockAt(
+          Instant.ofEpochMilli(val.getExpiresAt()).plus(1, ChronoUnit.HOURS));
+      cache.cleanUp();
+      assertThat(cache.stats().evictionCount()).isEqualTo(1);
+    } finally {
+      TimeMachine.useSystemDefaultZoneClock();
+    }
+  }
+
+  private static Val futureVal(Val val) throws Exception {
+    return withExpiresAt(val, System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1));
+  }
+
+  private static Val withAccountId(Val val, int accountId) throws Exception {
+    SessionCodec codec = new SessionCodec(true);
+    byte[] data = codec.encode(val);
+    ByteBuffer.wrap(data).putInt(SessionCodec.ACCOUNT_ID_OFFSET, accountId);
+    return codec.decode(data);
+  }
+
+  /** Asserts that the expiry in the content of the file matches its modification time. */
+  private static void assertConsistent(Path path) throws Exception {
+    Val val = new SessionCodec(true).decode(Files.readAllBytes(path));
+    assertThat(Files.getLastModifiedTime(path).toMillis()).isEqualTo(val.getExpiresAt());
+  }
+
+  private static Object fileKey(Path path) throws IOException {
+    return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+  }
+
+  private static Config compactConfig() {
+    Config cfg = new Config();
+    cfg.setBoolean("plugin", PLUGIN_NAME, "compactFormat", true);
+    return cfg;
+  }
+
+  private static Config shardedConfig() {
+    Config cfg = new Config();
+    cfg.setInt("plugin", PLUGIN_NAME, "shardDepth", 2);
+    return cfg;
+  }
+
+  private FlatFileWebSessionCache newCache(Config cfg) throws IOException {
+    return new FlatFileWebSessionCache(
+        newStore(cfg),
+        new Configuration(PluginConfig.createFromGerritConfig(PLUGIN_NAME, cfg)),
+        newMetrics());
+  }
+
+  private FlatFileSessionStore newStore(Config cfg) throws IOException {
+    return new FlatFileSessionStore(
+        websessionDir,
+        new Configuration(PluginConfig.createFromGerritConfig(PLUGIN_NAME, cfg)),
+        SessionScanner.sequential(),
+        newMetrics());
   }
 
   private List<String> loadKeysToCacheDir(int number) throws IOException {
     List<String> keys = new ArrayList<>();
     for (int i = 0; i < number; i++) {
-      Path tmp = Files.createTempFile(websessionDir, "cache", null);
+      Path tmp = Files.createTempFile(websessionDir, "cache", "");
       keys.add(tmp.getFileName().toString());
     }
     return keys;
   }
 
   private boolean isDirEmpty(final Path dir) throws IOException {
-    try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(dir)) {
+    // Plugin data, such as the staging directory of puts, is not a session.
+    try (DirectoryStream<Path> dirStream =
+        Files.newDirectoryStream(
+            dir, path -> !SessionLayout.isReserved(SessionLayout.keyOf(path)))) {
       return !dirStream.iterator().hasNext();
     }
   }
@@ -290,6 +1159,8 @@ public class FlatFileWebSessionCacheTest {
     try (InputStream in = loadFile(key)) {
       Path target = websessionDir.resolve(key);
       Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+      // Written by an earlier version of the plugin, at the time of the test clock.
+      Files.setLastModifiedTime(target, FileTime.from(TimeMachine.now()));
       return target;
     }
   }
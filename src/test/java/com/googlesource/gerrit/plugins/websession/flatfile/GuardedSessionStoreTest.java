@@ -0,0 +1,243 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.EXISTING_KEY;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.existingVal;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.newMetrics;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.withExpiresAt;
+import static org.junit.Assert.fail;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.gerrit.httpd.WebSessionManager.Val;
+import com.google.gerrit.server.config.PluginConfig;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import org.eclipse.jgit.lib.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GuardedSessionStoreTest {
+  private static final String KEY = "abcde12345";
+  private static final String PLUGIN_NAME = "websession-flatfile";
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Val val;
+  private Configuration config;
+  private WebSessionMetrics metrics;
+  private StallingStore stallingStore;
+  private ExecutorService ioExecutor;
+  private GuardedSessionStore store;
+
+  /** Store whose session operations and listing block while {@link #stall} is not released. */
+  private static class StallingStore implements SessionStore {
+    private final SessionStore delegate;
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile CountDownLatch stall = new CountDownLatch(0);
+
+    StallingStore(SessionStore delegate) {
+      this.delegate = delegate;
+    }
+
+    private void await() {
+      calls.incrementAndGet();
+      Uninterruptibles.awaitUninterruptibly(stall);
+    }
+
+    @Override
+    public Object version(String key) {
+      await();
+      return delegate.version(key);
+    }
+
+    @Override
+    public Val read(String key) {
+      await();
+      return delegate.read(key);
+    }
+
+    @Override
+    public Object write(String key, Val val, Versioned previous) throws IOException {
+      await();
+      return delegate.write(key, val, previous);
+    }
+
+    @Override
+    public void delete(String key) {
+      await();
+      delegate.delete(key);
+    }
+
+    @Override
+    public Long expiresAt(String key) {
+      await();
+      return delegate.expiresAt(key);
+    }
+
+    @Override
+    public void deleteAll() {
+      delegate.deleteAll();
+    }
+
+    @Override
+    public Stream<String> keys() {
+      await();
+      return delegate.keys();
+    }
+
+    @Override
+    public long deleteExpired(Instant now, Consumer<String> deleted) {
+      return delegate.deleteExpired(now, deleted);
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    // Expired sessions are not served, this one expired in 2015.
+    val = withExpiresAt(existingVal(), System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1));
+    Config cfg = new Config();
+    cfg.setInt("plugin", PLUGIN_NAME, "ioConcurrency", 2);
+    cfg.setString("plugin", PLUGIN_NAME, "ioTimeout", "100ms");
+    cfg.setString("plugin", PLUGIN_NAME, "ioBulkTimeout", "200ms");
+    cfg.setInt("plugin", PLUGIN_NAME, "breakerThreshold", 2);
+    cfg.setString("plugin", PLUGIN_NAME, "breakerOpenTime", "500ms");
+    config = new Configuration(PluginConfig.createFromGerritConfig(PLUGIN_NAME, cfg));
+    metrics = newMetrics();
+    stallingStore =
+        new StallingStore(
+            new FlatFileSessionStore(
+                tempFolder.newFolder("websessions").toPath(),
+                config,
+                SessionScanner.sequential(),
+                metrics));
+    ioExecutor = Executors.newFixedThreadPool(config.getIoConcurrency());
+    store = new GuardedSessionStore(stallingStore, config, metrics, ioExecutor);
+  }
+
+  @After
+  public void releaseStall() {
+    stallingStore.stall.countDown();
+    ioExecutor.shutdownNow();
+  }
+
+  @Test
+  public void breakerOpensAfterTimeoutsTest() throws Exception {
+    store.write(KEY, val, null);
+    assertThat(store.read(KEY)).isNotNull();
+
+    stallingStore.stall = new CountDownLatch(1);
+    assertUnavailable(KEY);
+    assertThat(store.breakerState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    assertUnavailable(KEY);
+    assertThat(store.breakerState()).isEqualTo(CircuitBreaker.State.OPEN);
+
+    // Fails fast without reaching the stalled store.
+    int calls = stallingStore.calls.get();
+    assertUnavailable(KEY);
+    assertThat(stallingStore.calls.get()).isEqualTo(calls);
+
+    stallingStore.stall.countDown();
+    Thread.sleep(600);
+    // The probe succeeds.
+    assertThat(store.version(KEY)).isNotNull();
+    assertThat(store.breakerState()).isEqualTo(CircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void cacheServesSessionsFromMemoryWhileStoreUnavailableTest() throws Exception {
+    FlatFileWebSessionCache cache = new FlatFileWebSessionCache(store, config, metrics);
+    cache.put(KEY, val);
+    assertThat(cache.getIfPresent(KEY)).isNotNull();
+
+    stallingStore.stall = new CountDownLatch(1);
+    assertThat(cache.getIfPresent(KEY)).isNotNull();
+    assertThat(cache.getIfPresent(KEY)).isNotNull();
+    assertThat(store.breakerState()).isEqualTo(CircuitBreaker.State.OPEN);
+
+    cache.put(EXISTING_KEY, val);
+    assertThat(cache.getIfPresent(EXISTING_KEY)).isNotNull();
+    assertThat(cache.getIfPresent("unknown")).isNull();
+  }
+
+  @Test
+  public void sessionPutWhileStoreUnavailableIsStoredOnceItAnswersTest() throws Exception {
+    FlatFileWebSessionCache cache = new FlatFileWebSessionCache(store, config, metrics);
+    stallingStore.stall = new CountDownLatch(1);
+    assertUnavailable(KEY);
+    assertUnavailable(KEY);
+    cache.put(KEY, val);
+    assertThat(cache.getIfPresent(KEY)).isNotNull();
+
+    stallingStore.stall.countDown();
+    Thread.sleep(600);
+    assertThat(stallingStore.delegate.read(KEY)).isNull();
+    assertThat(cache.getIfPresent(KEY)).isNotNull();
+    assertThat(stallingStore.delegate.read(KEY)).isNotNull();
+  }
+
+  @Test
+  public void bulkCacheOperationsDegradeWhileStoreUnavailableTest() throws Exception {
+    FlatFileWebSessionCache cache = new FlatFileWebSessionCache(store, config, metrics);
+    cache.put(KEY, val);
+    assertThat(cache.size()).isEqualTo(1);
+
+    stallingStore.stall = new CountDownLatch(1);
+    assertUnavailable(KEY);
+    assertUnavailable(KEY);
+    assertThat(store.breakerState()).isEqualTo(CircuitBreaker.State.OPEN);
+
+    // The last count.
+    assertThat(cache.size()).isEqualTo(1);
+    assertThat(cache.asMap().entrySet().iterator().hasNext()).isFalse();
+    assertThat(cache.invalidateAccount(val.getAccountId())).isEqualTo(0);
+    cache.invalidateAll();
+    assertThat(cache.getIfPresent(KEY)).isNull();
+  }
+
+  @Test
+  public void countAndKeysOfAccountAreGivenUpOnStalledStoreTest() throws Exception {
+    FlatFileWebSessionCache cache = new FlatFileWebSessionCache(store, config, metrics);
+    cache.put(KEY, val);
+    assertThat(cache.size()).isEqualTo(1);
+
+    stallingStore.stall = new CountDownLatch(1);
+    long start = System.nanoTime();
+    assertThat(cache.size()).isEqualTo(1);
+    assertThat(cache.invalidateAccount(val.getAccountId())).isEqualTo(0);
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(5000);
+    assertThat(store.breakerState()).isEqualTo(CircuitBreaker.State.OPEN);
+  }
+
+  private void assertUnavailable(String key) {
+    try {
+      store.version(key);
+      fail("expected StoreUnavailableException");
+    } catch (StoreUnavailableException e) {
+      // Expected.
+    }
+  }
+}
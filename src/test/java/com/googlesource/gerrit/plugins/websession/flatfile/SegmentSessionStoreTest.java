@@ -0,0 +1,169 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.EXISTING_KEY;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.existingVal;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.newMetrics;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.withExpiresAt;
+
+import com.google.gerrit.httpd.WebSessionManager.Val;
+import com.google.gerrit.server.config.PluginConfig;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Config;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentSessionStoreTest {
+  private static final String PLUGIN_NAME = "websession-flatfile";
+  private static final SessionCodec CODEC = new SessionCodec(true);
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Path websessionDir;
+  private Val val;
+
+  @Before
+  public void createDir() throws Exception {
+    websessionDir = tempFolder.newFolder("websessions").toPath();
+    // Sessions expired at startup are not loaded.
+    val = withExpiresAt(existingVal(), System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1));
+  }
+
+  @Test
+  public void writeAndReadTest() throws Exception {
+    SegmentSessionStore store = newStore();
+    assertThat(store.read(EXISTING_KEY)).isNull();
+    assertThat(store.version(EXISTING_KEY)).isNull();
+
+    Object version = store.write(EXISTING_KEY, val, null);
+    assertThat(store.version(EXISTING_KEY)).isEqualTo(version);
+    assertThat(CODEC.encode(store.read(EXISTING_KEY))).isEqualTo(CODEC.encode(val));
+    assertThat(store.expiresAt(EXISTING_KEY)).isEqualTo(val.getExpiresAt());
+    assertThat(store.count()).isEqualTo(1);
+  }
+
+  @Test
+  public void writeUnchangedKeepsVersionTest() throws Exception {
+    SegmentSessionStore store = newStore();
+    Object version = store.write(EXISTING_KEY, val, null);
+    assertThat(store.write(EXISTING_KEY, val, new SessionStore.Versioned(val, version)))
+        .isEqualTo(version);
+
+    Val extended = withExpiresAt(val, val.getExpiresAt() + TimeUnit.HOURS.toMillis(1));
+    Object newVersion =
+        store.write(EXISTING_KEY, extended, new SessionStore.Versioned(val, version));
+    assertThat(newVersion).isNotEqualTo(version);
+    assertThat(store.expiresAt(EXISTING_KEY)).isEqualTo(extended.getExpiresAt());
+  }
+
+  @Test
+  public void indexIsRebuiltOnStartupTest() throws Exception {
+    SegmentSessionStore store = newStore();
+    List<String> keys = writeSessions(store, 100);
+    Val extended = withExpiresAt(val, val.getExpiresAt() + TimeUnit.HOURS.toMillis(1));
+    store.write(keys.get(0), extended, null);
+    store.delete(keys.get(1));
+
+    SegmentSessionStore reopened = newStore();
+    assertThat(reopened.count()).isEqualTo(99);
+    assertThat(reopened.expiresAt(keys.get(0))).isEqualTo(extended.getExpiresAt());
+    assertThat(reopened.read(keys.get(1))).isNull();
+    assertThat(CODEC.encode(reopened.read(keys.get(2)))).isEqualTo(CODEC.encode(val));
+  }
+
+  @Test
+  public void deleteExpiredCompactsSegmentsTest() throws Exception {
+    SegmentSessionStore store = newStore();
+    List<String> keys = writeSessions(store, 2000);
+    Val extended = withExpiresAt(val, val.getExpiresAt() + TimeUnit.HOURS.toMillis(1));
+    store.write(keys.get(0), extended, null);
+    int segments = store.segmentCount();
+    assertThat(segments).isGreaterThan(1);
+
+    List<String> deleted = new ArrayList<>();
+    assertThat(store.deleteExpired(Instant.ofEpochMilli(val.getExpiresAt() + 1), deleted::add))
+        .isEqualTo(1999);
+    assertThat(deleted).hasSize(1999);
+    assertThat(store.segmentCount()).isLessThan(segments);
+    assertThat(store.count()).isEqualTo(1);
+
+    assertThat(newStore().expiresAt(keys.get(0))).isEqualTo(extended.getExpiresAt());
+  }
+
+  @Test
+  public void compactionKeepsTombstonesOfOlderSegmentsTest() throws Exception {
+    SegmentSessionStore store = newStore();
+    List<String> keys = new ArrayList<>();
+    while (store.segmentCount() < 2) {
+      String key = String.format("key%05d", keys.size());
+      store.write(key, val, null);
+      keys.add(key);
+    }
+    for (int i = 0; i < keys.size(); i += 4) {
+      store.delete(keys.get(i));
+    }
+    // Fill the second segment with short-lived sessions only, so that it is
+    // compacted with its tombstones while the first one is kept.
+    for (int i = 0; store.segmentCount() < 3; i++) {
+      store.write("transient" + i, val, null);
+      store.delete("transient" + i);
+    }
+    store.compact(System.currentTimeMillis());
+    assertThat(store.segmentCount()).isLessThan(3);
+
+    SegmentSessionStore reopened = newStore();
+    assertThat(reopened.count()).isEqualTo(keys.size() - (keys.size() + 3) / 4);
+    assertThat(reopened.read(keys.get(0))).isNull();
+    assertThat(reopened.read(keys.get(1))).isNotNull();
+  }
+
+  @Test
+  public void deleteAllTest() throws Exception {
+    SegmentSessionStore store = newStore();
+    writeSessions(store, 100);
+    store.deleteAll();
+    assertThat(store.count()).isEqualTo(0);
+    assertThat(newStore().count()).isEqualTo(0);
+  }
+
+  private List<String> writeSessions(SegmentSessionStore store, int number) throws IOException {
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < number; i++) {
+      String key = String.format("key%05d", i);
+      store.write(key, val, null);
+      keys.add(key);
+    }
+    return keys;
+  }
+
+  private SegmentSessionStore newStore() throws IOException {
+    Config cfg = new Config();
+    cfg.setString("plugin", PLUGIN_NAME, "store", "segment");
+    cfg.setInt("plugin", PLUGIN_NAME, "segmentSize", Configuration.MIN_SEGMENT_SIZE);
+    return new SegmentSessionStore(
+        websessionDir,
+        new Configuration(PluginConfig.createFromGerritConfig(PLUGIN_NAME, cfg)),
+        newMetrics());
+  }
+}
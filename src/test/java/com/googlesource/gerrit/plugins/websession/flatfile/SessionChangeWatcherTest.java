@@ -0,0 +1,139 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.existingVal;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.newMetrics;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.withExpiresAt;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import com.google.gerrit.httpd.WebSessionManager.Val;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.git.WorkQueue;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.eclipse.jgit.lib.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SessionChangeWatcherTest {
+  private static final String KEY = "abcde12345";
+  private static final String PLUGIN_NAME = "websession-flatfile";
+  private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+  @Mock private WorkQueue workQueueMock;
+
+  private Path websessionDir;
+  private Val val;
+  private SessionChangeWatcher watcher;
+
+  @Before
+  public void setUp() throws Exception {
+    websessionDir = tempFolder.newFolder("websessions").toPath();
+    // Expired sessions are not served, this one expired in 2015.
+    val = withExpiresAt(existingVal(), System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1));
+    when(workQueueMock.createQueue(anyInt(), anyString()))
+        .thenReturn(Executors.newSingleThreadScheduledExecutor());
+  }
+
+  @After
+  public void stopWatcher() {
+    if (watcher != null) {
+      watcher.stop();
+    }
+  }
+
+  @Test
+  public void watchEvictsSessionsRewrittenByOtherMastersTest() throws Exception {
+    assertEvictsRewrittenSessions("watch", 0);
+  }
+
+  @Test
+  public void watchShardedLayoutTest() throws Exception {
+    assertEvictsRewrittenSessions("watch", 2);
+  }
+
+  @Test
+  public void watchFallsBackToPollingWithTooManyDirectoriesTest() throws Exception {
+    for (int i = 0; i <= SessionChangeWatcher.MAX_WATCHED_DIRECTORIES; i++) {
+      Files.createDirectory(websessionDir.resolve(String.format("x%04x", i)));
+    }
+    assertEvictsRewrittenSessions("watch", 1);
+    awaitTrue(watcher::isPolling);
+  }
+
+  @Test
+  public void pollEvictsSessionsRewrittenByOtherMastersTest() throws Exception {
+    assertEvictsRewrittenSessions("poll", 0);
+  }
+
+  private void assertEvictsRewrittenSessions(String changeDetection, int shardDepth)
+      throws Exception {
+    Config cfg = new Config();
+    cfg.setString("plugin", PLUGIN_NAME, "changeDetection", changeDetection);
+    cfg.setString("plugin", PLUGIN_NAME, "changePollInterval", "10ms");
+    cfg.setInt("plugin", PLUGIN_NAME, "shardDepth", shardDepth);
+    FlatFileWebSessionCache cache = newCache(cfg);
+    FlatFileWebSessionCache otherMaster = newCache(cfg);
+    // Stored before the watcher starts, so that the shard is watched once the session is cached.
+    cache.put(KEY, val);
+    watcher =
+        new SessionChangeWatcher(
+            workQueueMock,
+            cache,
+            new Configuration(PluginConfig.createFromGerritConfig(PLUGIN_NAME, cfg)),
+            websessionDir);
+    watcher.start();
+
+    assertThat(cache.getIfPresent(KEY)).isNotNull();
+
+    otherMaster.invalidate(KEY);
+    awaitTrue(() -> cache.getIfPresent(KEY) == null);
+
+    otherMaster.put(KEY, val);
+    awaitTrue(() -> cache.getIfPresent(KEY) != null);
+  }
+
+  private FlatFileWebSessionCache newCache(Config cfg) throws Exception {
+    Configuration config = new Configuration(PluginConfig.createFromGerritConfig(PLUGIN_NAME, cfg));
+    WebSessionMetrics metrics = newMetrics();
+    return new FlatFileWebSessionCache(
+        new FlatFileSessionStore(websessionDir, config, SessionScanner.sequential(), metrics),
+        config,
+        metrics);
+  }
+
+  private static void awaitTrue(Supplier<Boolean> condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (!condition.get() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(condition.get()).isTrue();
+  }
+}
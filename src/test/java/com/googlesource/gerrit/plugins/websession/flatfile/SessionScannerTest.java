@@ -0,0 +1,136 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import com.google.gerrit.server.git.WorkQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SessionScannerTest {
+
+  @Mock private WorkQueue workQueueMock;
+
+  private SessionScanner scanner;
+
+  @After
+  public void stopScanner() {
+    if (scanner != null) {
+      scanner.stop();
+    }
+  }
+
+  @Test
+  public void testParallelScanProcessesAllItems() {
+    when(workQueueMock.createQueue(anyInt(), anyString()))
+        .thenReturn(Executors.newScheduledThreadPool(4));
+    scanner = new SessionScanner(workQueueMock, 4, 7, 0);
+    scanner.start();
+
+    Set<Integer> processed = ConcurrentHashMap.newKeySet();
+    boolean complete = scanner.forEach(IntStream.range(0, 1000).iterator(), processed::add);
+
+    assertThat(complete).isTrue();
+    assertThat(processed)
+        .containsExactlyElementsIn(IntStream.range(0, 1000).boxed().collect(Collectors.toSet()));
+  }
+
+  @Test
+  public void testSequentialScanProcessesAllItems() {
+    Set<Integer> processed = ConcurrentHashMap.newKeySet();
+    boolean complete =
+        SessionScanner.sequential().forEach(IntStream.range(0, 250).iterator(), processed::add);
+
+    assertThat(complete).isTrue();
+    assertThat(processed).hasSize(250);
+  }
+
+  @Test
+  public void testInterruptedScanStops() {
+    Set<Integer> processed = ConcurrentHashMap.newKeySet();
+    Thread.currentThread().interrupt();
+    try {
+      boolean complete =
+          SessionScanner.sequential().forEach(IntStream.range(0, 250).iterator(), processed::add);
+      assertThat(complete).isFalse();
+      assertThat(processed).isEmpty();
+    } finally {
+      Thread.interrupted();
+    }
+  }
+
+  @Test
+  public void testScanStoppedByShutdownIsIncomplete() {
+    when(workQueueMock.createQueue(anyInt(), anyString()))
+        .thenReturn(Executors.newScheduledThreadPool(2));
+    scanner = new SessionScanner(workQueueMock, 2, 1, 0);
+    scanner.start();
+
+    Set<Integer> processed = ConcurrentHashMap.newKeySet();
+    boolean complete =
+        scanner.forEach(
+            IntStream.range(0, 100).iterator(),
+            i -> {
+              if (i == 10) {
+                scanner.stop();
+              }
+              processed.add(i);
+            });
+
+    assertThat(complete).isFalse();
+    assertThat(Thread.currentThread().isInterrupted()).isFalse();
+    assertThat(processed.size()).isLessThan(100);
+  }
+
+  @Test
+  public void testGuardStopsScan() {
+    SessionScanner sequential = SessionScanner.sequential();
+    Set<Integer> processed = ConcurrentHashMap.newKeySet();
+    AtomicInteger batches = new AtomicInteger();
+    AtomicBoolean complete = new AtomicBoolean(true);
+    sequential.guarded(
+        () -> batches.incrementAndGet() <= 2,
+        () ->
+            complete.set(
+                sequential.forEach(IntStream.range(0, 1000).iterator(), processed::add)));
+
+    assertThat(complete.get()).isFalse();
+    assertThat(processed).hasSize(2 * Configuration.DEFAULT_CLEANUP_BATCH_SIZE);
+    assertThat(sequential.forEach(IntStream.range(0, 250).iterator(), i -> {})).isTrue();
+  }
+
+  @Test
+  public void testRateLimitedScan() {
+    scanner = new SessionScanner(null, 1, 10, 1000);
+    Set<Integer> processed = ConcurrentHashMap.newKeySet();
+    assertThat(scanner.forEach(IntStream.range(0, 50).iterator(), processed::add)).isTrue();
+    assertThat(processed).hasSize(50);
+  }
+}
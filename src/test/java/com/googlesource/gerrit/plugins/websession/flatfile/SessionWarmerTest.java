@@ -0,0 +1,79 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.existingVal;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.newMetrics;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.withExpiresAt;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gerrit.httpd.WebSessionManager.Val;
+import com.google.gerrit.server.config.PluginConfig;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Config;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SessionWarmerTest {
+  private static final String PLUGIN_NAME = "websession-flatfile";
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Path websessionDir;
+  private Val val;
+  private FlatFileSessionStore store;
+  private FlatFileWebSessionCache cache;
+  private SessionWarmer warmer;
+
+  @Before
+  public void setUp() throws Exception {
+    websessionDir = tempFolder.newFolder("websessions").toPath();
+    val = existingVal();
+    Configuration config =
+        new Configuration(PluginConfig.createFromGerritConfig(PLUGIN_NAME, new Config()));
+    WebSessionMetrics metrics = newMetrics();
+    store = new FlatFileSessionStore(websessionDir, config, SessionScanner.sequential(), metrics);
+    cache = new FlatFileWebSessionCache(store, config, metrics);
+    warmer = new SessionWarmer(null, cache, store, config);
+  }
+
+  @Test
+  public void warmUpLoadsSessionsExpiringLastTest() throws Exception {
+    long now = System.currentTimeMillis();
+    store.write("expired", val, null);
+    store.write("old", withExpiresAt(val, now + TimeUnit.HOURS.toMillis(1)), null);
+    store.write("recent", withExpiresAt(val, now + TimeUnit.HOURS.toMillis(2)), null);
+    store.write("latest", withExpiresAt(val, now + TimeUnit.HOURS.toMillis(3)), null);
+
+    warmer.warmUp(MoreExecutors.directExecutor(), 2, deadline());
+    assertThat(cache.watchedKeys()).containsExactly("recent", "latest");
+  }
+
+  @Test
+  public void warmUpStopsAtDeadlineTest() throws Exception {
+    store.write("latest", withExpiresAt(val, System.currentTimeMillis() + 1000), null);
+
+    warmer.warmUp(MoreExecutors.directExecutor(), 10, System.nanoTime());
+    assertThat(cache.watchedKeys()).isEmpty();
+  }
+
+  private static long deadline() {
+    return System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+  }
+}
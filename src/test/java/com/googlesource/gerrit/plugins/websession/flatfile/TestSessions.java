@@ -0,0 +1,55 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import com.google.common.io.ByteStreams;
+import com.google.gerrit.httpd.WebSessionManager.Val;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.inject.Guice;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/** Sessions and helpers shared by the tests of the stores. */
+final class TestSessions {
+  /** Key of the session file in the test resources, which expired in 2015. */
+  static final String EXISTING_KEY = "aSceprtBc02YaMY573T5jfW64ZudJfPbDq";
+
+  private static final SessionCodec CODEC = new SessionCodec(true);
+
+  static {
+    // Injects the static dependencies of Val, required before sessions are decoded.
+    Guice.createInjector(new FlatFileWebSessionCacheTest.TestModule());
+  }
+
+  /** Reads the session of {@link #EXISTING_KEY} from the test resources. */
+  static Val existingVal() throws Exception {
+    try (InputStream in = TestSessions.class.getResourceAsStream("/" + EXISTING_KEY)) {
+      return CODEC.decode(ByteStreams.toByteArray(in));
+    }
+  }
+
+  /** Returns a copy of {@code val} expiring at {@code expiresAt}. */
+  static Val withExpiresAt(Val val, long expiresAt) throws Exception {
+    byte[] data = CODEC.encode(val);
+    ByteBuffer.wrap(data).putLong(SessionCodec.EXPIRES_AT_OFFSET, expiresAt);
+    return CODEC.decode(data);
+  }
+
+  static WebSessionMetrics newMetrics() {
+    return new WebSessionMetrics(new DisabledMetricMaker());
+  }
+
+  private TestSessions() {}
+}
@@ -0,0 +1,149 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.websession.flatfile;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.EXISTING_KEY;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.existingVal;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.newMetrics;
+import static com.googlesource.gerrit.plugins.websession.flatfile.TestSessions.withExpiresAt;
+
+import com.google.gerrit.httpd.WebSessionManager.Val;
+import com.google.gerrit.server.config.PluginConfig;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Config;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TwoTierSessionStoreTest {
+  private static final String KEY = "abcde12345";
+  private static final String PLUGIN_NAME = "websession-flatfile";
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Path sharedDir;
+  private Path localDir;
+  private Val val;
+  private WebSessionMetrics metrics;
+  private Configuration config;
+  private FlatFileSessionStore shared;
+
+  @Before
+  public void setUp() throws Exception {
+    sharedDir = tempFolder.newFolder("websessions").toPath();
+    localDir = tempFolder.newFolder("local").toPath();
+    val = existingVal();
+    metrics = newMetrics();
+    config = new Configuration(PluginConfig.createFromGerritConfig(PLUGIN_NAME, new Config()));
+    shared = newStore(sharedDir);
+  }
+
+  @Test
+  public void readServesLocalCopyTest() throws Exception {
+    TwoTierSessionStore store = newTwoTierStore("1h");
+    store.write(KEY, withExpiresAt(val, inOneHour()), null);
+    assertThat(Files.exists(localDir.resolve(KEY))).isTrue();
+
+    // Not checked against the shared store within the validation interval.
+    Files.delete(sharedDir.resolve(KEY));
+    assertThat(store.version(KEY)).isNotNull();
+    assertThat(store.read(KEY)).isNotNull();
+  }
+
+  @Test
+  public void sessionRewrittenByOtherMasterIsReadAgainTest() throws Exception {
+    TwoTierSessionStore store = newTwoTierStore("0");
+    store.write(KEY, withExpiresAt(val, inOneHour()), null);
+
+    long extended = inOneHour() + TimeUnit.HOURS.toMillis(1);
+    newStore(sharedDir).write(KEY, withExpiresAt(val, extended), null);
+    assertThat(store.read(KEY).getExpiresAt()).isEqualTo(extended);
+    assertThat(newStore(localDir).read(KEY).getExpiresAt()).isEqualTo(extended);
+
+    newStore(sharedDir).delete(KEY);
+    assertThat(store.version(KEY)).isNull();
+    assertThat(store.read(KEY)).isNull();
+    assertThat(Files.exists(localDir.resolve(KEY))).isFalse();
+  }
+
+  @Test
+  public void copiesOfPreviousRunAndExpiredCopiesAreDeletedTest() throws Exception {
+    newStore(localDir).write(EXISTING_KEY, withExpiresAt(val, inOneHour()), null);
+    TwoTierSessionStore store = newTwoTierStore("1h");
+    // Deleted when the plugin starts rather than while the store is injected.
+    assertThat(Files.exists(localDir.resolve(EXISTING_KEY))).isTrue();
+    store.start();
+    assertThat(Files.exists(localDir.resolve(EXISTING_KEY))).isFalse();
+
+    // The session of EXISTING_KEY expired in 2015.
+    store.write(EXISTING_KEY, val, null);
+    assertThat(Files.exists(localDir.resolve(EXISTING_KEY))).isTrue();
+    assertThat(store.deleteExpired(Instant.now(), key -> {})).isEqualTo(1);
+    assertThat(Files.exists(sharedDir.resolve(EXISTING_KEY))).isFalse();
+    assertThat(Files.exists(localDir.resolve(EXISTING_KEY))).isFalse();
+  }
+
+  @Test
+  public void copiesOfLeastRecentlyUsedSessionsAreDeletedTest() throws Exception {
+    Config cfg = new Config();
+    cfg.setInt("plugin", PLUGIN_NAME, "localCacheSize", 2);
+    TwoTierSessionStore store = newTwoTierStore("1h", cfg);
+    store.write("key1", withExpiresAt(val, inOneHour()), null);
+    store.write("key2", withExpiresAt(val, inOneHour()), null);
+    assertThat(store.read("key1")).isNotNull();
+    store.write("key3", withExpiresAt(val, inOneHour()), null);
+
+    assertThat(Files.exists(localDir.resolve("key1"))).isTrue();
+    assertThat(Files.exists(localDir.resolve("key2"))).isFalse();
+    assertThat(Files.exists(localDir.resolve("key3"))).isTrue();
+    assertThat(store.read("key2")).isNotNull();
+    assertThat(Files.exists(localDir.resolve("key2"))).isTrue();
+  }
+
+  private TwoTierSessionStore newTwoTierStore(String validationInterval) throws Exception {
+    return newTwoTierStore(validationInterval, new Config());
+  }
+
+  private TwoTierSessionStore newTwoTierStore(String validationInterval, Config cfg)
+      throws Exception {
+    cfg.setString("plugin", PLUGIN_NAME, "localDirectory", localDir.toString());
+    cfg.setString("plugin", PLUGIN_NAME, "localValidationInterval", validationInterval);
+    Configuration twoTierConfig =
+        new Configuration(PluginConfig.createFromGerritConfig(PLUGIN_NAME, cfg));
+    return new TwoTierSessionStore(
+        shared,
+        new FlatFileSessionStore(
+            localDir,
+            twoTierConfig.isCompactFormat(),
+            twoTierConfig.getShardDepth(),
+            twoTierConfig.getShardWidth(),
+            SessionScanner.sequential(),
+            metrics),
+        twoTierConfig);
+  }
+
+  private FlatFileSessionStore newStore(Path dir) throws Exception {
+    return new FlatFileSessionStore(dir, config, SessionScanner.sequential(), metrics);
+  }
+
+  private static long inOneHour() {
+    return System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+  }
+}